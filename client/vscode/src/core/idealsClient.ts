@@ -10,6 +10,9 @@ import os = require('node:os');
 
 const outputChannel = vscode.window.createOutputChannel("IdeaLS Client");
 
+//ms to wait for the editor to stop scrolling before reporting its visible ranges
+const VISIBLE_RANGES_DELAY = 100;
+
 export class IdealsClient {
   private languageClient?: LanguageClient;
   private context?: vscode.ExtensionContext;
@@ -58,6 +61,7 @@ export class IdealsClient {
           });
         }
         disposeDidChange.dispose();
+        this.reportVisibleRanges();
       });
 
     } catch (exception) {
@@ -65,6 +69,33 @@ export class IdealsClient {
     }
   }
 
+  //Tell the server which parts of the documents are shown, so that their problems are reported first.
+  reportVisibleRanges() {
+    const pending = new Map<string, NodeJS.Timeout>();
+    const send = (editor: vscode.TextEditor) => {
+      const client = this.languageClient;
+      if (!client) {
+        return;
+      }
+      const uri = client.code2ProtocolConverter.asUri(editor.document.uri);
+      //scrolling fires lots of events, only the last position matters
+      clearTimeout(pending.get(uri));
+      pending.set(uri, setTimeout(() => {
+        pending.delete(uri);
+        client.sendNotification("idea/visibleRanges", {
+          uri: uri,
+          ranges: editor.visibleRanges.map((range) => client.code2ProtocolConverter.asRange(range)),
+        });
+      }, VISIBLE_RANGES_DELAY));
+    };
+
+    vscode.window.visibleTextEditors.forEach(send);
+    this.context?.subscriptions.push(
+      vscode.window.onDidChangeTextEditorVisibleRanges((event) => send(event.textEditor)),
+      vscode.window.onDidChangeVisibleTextEditors((editors) => editors.forEach(send)),
+    );
+  }
+
   //Create a command to be run to start the LS java process.
   getIdealsInitOptions() : IdealsInitOptions {
     let configuredTransport: String =
@@ -93,6 +124,27 @@ export class IdealsClient {
       });
     }
 
+    if (configuredTransport.toUpperCase() === "UNIX") {
+      // Connect to language server via unix domain socket
+      let configuredSocketPath: string =
+        vscode.workspace.getConfiguration('ideals').get('startup.socketPath') || process.env.IDEALS_SOCKET_PATH || path.join(os.tmpdir(), "ideals.sock");
+
+      return new IdealsInitOptions( () => {
+        try {
+          let socket = net.connect({ path: configuredSocketPath });
+          let result: StreamInfo = {
+            writer: socket,
+            reader: socket
+          };
+          return Promise.resolve(result);
+
+        } catch (exception) {
+          console.log("failed to connect: " + exception);
+          throw exception;
+        }
+      });
+    }
+
     let ideaExecutablePath: string | undefined =
       vscode.workspace.getConfiguration('ideals').get('startup.ideaExecutablePath') || process.env.IDEALS_IJ_PATH;
 
@@ -0,0 +1,187 @@
+package org.rri.ideals.server;
+
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable text of a document as the clients see it at a particular revision.
+ * <p>
+ * Line starts are precomputed, so position/offset conversion and text slicing don't need
+ * IDEA's {@code Document} and can be done on any thread without a read action.
+ * Offsets and characters are in UTF-16 code units, the text is expected to have {@code \n} line separators only.
+ */
+public final class DocumentSnapshot {
+  @Nullable
+  private final Integer version;
+
+  @NotNull
+  private final String text;
+
+  private final int @NotNull [] lineStarts;
+
+  private DocumentSnapshot(@Nullable Integer version, @NotNull String text) {
+    this(version, text, computeLineStarts(text));
+  }
+
+  private DocumentSnapshot(@Nullable Integer version, @NotNull String text, int @NotNull [] lineStarts) {
+    this.version = version;
+    this.text = text;
+    this.lineStarts = lineStarts;
+  }
+
+  @NotNull
+  public static DocumentSnapshot create(@Nullable Integer version, @NotNull String text) {
+    return new DocumentSnapshot(version, text);
+  }
+
+  /**
+   * @return the revision of the document (see {@link ManagedDocuments#getVersion(LspPath)}); {@code null} if unknown
+   */
+  @Nullable
+  public Integer getVersion() {
+    return version;
+  }
+
+  @NotNull
+  public String getText() {
+    return text;
+  }
+
+  @NotNull
+  public String getText(int startOffset, int endOffset) {
+    return text.substring(startOffset, endOffset);
+  }
+
+  @NotNull
+  public String getText(@NotNull Range range) {
+    return getText(positionToOffset(range.getStart()), positionToOffset(range.getEnd()));
+  }
+
+  public int getTextLength() {
+    return text.length();
+  }
+
+  public int getLineCount() {
+    return lineStarts.length;
+  }
+
+  public int getLineStartOffset(int line) {
+    return lineStarts[line];
+  }
+
+  public int getLineEndOffset(int line) {
+    return line + 1 < lineStarts.length ? lineStarts[line + 1] - 1 : text.length();
+  }
+
+  /**
+   * Out-of-bounds positions are clamped to the end of the line or the document, as the LSP specification requires.
+   */
+  public int positionToOffset(@NotNull Position position) {
+    final var line = position.getLine();
+    if (line < 0) {
+      return 0;
+    }
+    if (line >= lineStarts.length) {
+      return text.length();
+    }
+    return Math.min(lineStarts[line] + Math.max(0, position.getCharacter()), getLineEndOffset(line));
+  }
+
+  @NotNull
+  public Position offsetToPosition(int offset) {
+    final var clamped = Math.max(0, Math.min(offset, text.length()));
+    final var line = getLineNumber(clamped);
+    return new Position(line, clamped - lineStarts[line]);
+  }
+
+  @NotNull
+  public Range getRange(int startOffset, int endOffset) {
+    return new Range(offsetToPosition(startOffset), offsetToPosition(endOffset));
+  }
+
+  public int getLineNumber(int offset) {
+    final var index = Arrays.binarySearch(lineStarts, offset);
+    // for an offset inside a line, the insertion point is the start of the next line
+    return index >= 0 ? index : -index - 2;
+  }
+
+  /**
+   * @return the snapshot of the next version, the changes are applied in order
+   */
+  @NotNull
+  public DocumentSnapshot withChanges(@Nullable Integer newVersion,
+                                      @NotNull List<@NotNull TextDocumentContentChangeEvent> changes) {
+    var current = this;
+    for (var change : changes) {
+      final var changeText = change.getText().replace("\r\n", "\n");
+      current = change.getRange() == null
+          ? new DocumentSnapshot(newVersion, changeText)
+          : current.withReplacedRange(newVersion, change.getRange(), changeText);
+    }
+    return current == this ? new DocumentSnapshot(newVersion, text, lineStarts) : current;
+  }
+
+  /**
+   * Splices the text and reuses the line starts: the lines before the edited one are kept as is,
+   * the lines after the replaced range are shifted, only the inserted text is scanned.
+   */
+  @NotNull
+  private DocumentSnapshot withReplacedRange(@Nullable Integer newVersion, @NotNull Range range, @NotNull String replacement) {
+    final var start = positionToOffset(range.getStart());
+    final var end = Math.max(start, positionToOffset(range.getEnd()));
+    final var startLine = getLineNumber(start);
+    final var endLine = getLineNumber(end);
+
+    var inserted = 0;
+    for (int i = 0; i < replacement.length(); i++) {
+      if (replacement.charAt(i) == '\n') {
+        inserted++;
+      }
+    }
+
+    final var tailLines = lineStarts.length - endLine - 1;
+    final var result = new int[startLine + 1 + inserted + tailLines];
+    System.arraycopy(lineStarts, 0, result, 0, startLine + 1);
+    var line = startLine + 1;
+    for (int i = 0; i < replacement.length(); i++) {
+      if (replacement.charAt(i) == '\n') {
+        result[line++] = start + i + 1;
+      }
+    }
+    final var shift = replacement.length() - (end - start);
+    for (int i = endLine + 1; i < lineStarts.length; i++) {
+      result[line++] = lineStarts[i] + shift;
+    }
+
+    final var newText = new StringBuilder(text.length() + shift)
+        .append(text, 0, start)
+        .append(replacement)
+        .append(text, end, text.length())
+        .toString();
+    return new DocumentSnapshot(newVersion, newText, result);
+  }
+
+  private static int @NotNull [] computeLineStarts(@NotNull String text) {
+    var count = 1;
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) == '\n') {
+        count++;
+      }
+    }
+
+    final var result = new int[count];
+    var line = 1;
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) == '\n') {
+        result[line++] = i + 1;
+      }
+    }
+    return result;
+  }
+}
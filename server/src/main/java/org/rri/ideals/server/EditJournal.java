@@ -0,0 +1,175 @@
+package org.rri.ideals.server;
+
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rri.ideals.server.util.TextUtil;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounded journal of the edits applied to a document, keyed by the revisions of the document
+ * (see {@link ManagedDocuments#getVersion(LspPath)}).
+ * <p>
+ * Lets the caches computed for an older version of the document (diagnostics, quick fix anchors etc.) shift
+ * their ranges to a newer version instead of being recomputed from scratch. Only the shape of an edit (its range,
+ * the number of lines and the length of the last line of the inserted text) is kept, not the text itself.
+ */
+public final class EditJournal {
+  private static final int CAPACITY = Integer.getInteger("ideals.editJournal.capacity", 256);
+
+  private record Edit(int version, @NotNull Range range, int insertedLines, int lastLineLength) {
+  }
+
+  // guarded by this
+  @NotNull
+  private final ArrayDeque<Edit> edits = new ArrayDeque<>();
+
+  // the version starting from which the journal is complete; null if unknown; guarded by this
+  @Nullable
+  private Integer baseVersion;
+
+  // guarded by this
+  @Nullable
+  private Integer lastVersion;
+
+  public EditJournal(@Nullable Integer version) {
+    this.baseVersion = version;
+    this.lastVersion = version;
+  }
+
+  /**
+   * Records the change applied to the given snapshot which produced the document of the given version.
+   */
+  synchronized void record(@Nullable Integer version,
+                           @NotNull DocumentSnapshot before,
+                           @NotNull TextDocumentContentChangeEvent change) {
+    if (version == null) {
+      // the edits can't be referred to anymore
+      edits.clear();
+      baseVersion = null;
+      lastVersion = null;
+      return;
+    }
+
+    final var text = change.getText().replace("\r\n", "\n");
+    final Range range;
+    final String inserted;
+    if (change.getRange() != null) {
+      range = before.getRange(before.positionToOffset(change.getRange().getStart()),
+          before.positionToOffset(change.getRange().getEnd()));
+      inserted = text;
+    } else {
+      // the full text is replaced; only the range between the common prefix and suffix is changed actually
+      final var oldText = before.getText();
+      final var prefix = TextUtil.commonPrefixLength(oldText, text);
+      final var suffix = TextUtil.commonSuffixLength(oldText, text, prefix);
+      range = before.getRange(prefix, oldText.length() - suffix);
+      inserted = text.substring(prefix, text.length() - suffix);
+    }
+
+    final var lastLineStart = inserted.lastIndexOf('\n') + 1;
+    edits.addLast(new Edit(version, range, (int) inserted.chars().filter(c -> c == '\n').count(),
+        inserted.length() - lastLineStart));
+    if (baseVersion == null) {
+      // the journal can't go beyond the version the first recorded edit is applied to
+      baseVersion = before.getVersion() != null ? before.getVersion() : version - 1;
+    }
+    lastVersion = version;
+
+    while (edits.size() > CAPACITY) {
+      baseVersion = edits.removeFirst().version();
+    }
+    // the evicted edits may share the version with the remaining ones
+    while (!edits.isEmpty() && edits.peekFirst().version() <= baseVersion) {
+      edits.removeFirst();
+    }
+  }
+
+  /**
+   * @return the position in the document of version {@code toVersion} corresponding to the given position in the
+   * document of version {@code fromVersion}; a position inside a changed range moves to the start of the change;
+   * {@code null} if the journal doesn't cover the versions
+   */
+  @Nullable
+  public synchronized Position mapPosition(@NotNull Position position, @Nullable Integer fromVersion, @Nullable Integer toVersion) {
+    if (!covers(fromVersion, toVersion)) {
+      return null;
+    }
+    var result = position;
+    for (var edit : edits) {
+      if (edit.version() > fromVersion && edit.version() <= toVersion) {
+        result = shift(result, edit, true);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the range in the document of version {@code toVersion} corresponding to the given range in the document
+   * of version {@code fromVersion}; {@code null} if the journal doesn't cover the versions or the text within the
+   * range has been changed
+   */
+  @Nullable
+  public synchronized Range mapRange(@NotNull Range range, @Nullable Integer fromVersion, @Nullable Integer toVersion) {
+    if (!covers(fromVersion, toVersion)) {
+      return null;
+    }
+    var start = range.getStart();
+    var end = range.getEnd();
+    for (var edit : edits) {
+      if (edit.version() <= fromVersion || edit.version() > toVersion) {
+        continue;
+      }
+      // the edits touching the range from outside (e.g. typing right after it) don't change its text
+      if (compare(edit.range().getStart(), end) < 0 && compare(edit.range().getEnd(), start) > 0) {
+        return null;
+      }
+      // the text inserted at the bounds of a non-empty range stays outside of it
+      final var empty = start.equals(end);
+      start = shift(start, edit, empty);
+      end = shift(end, edit, true);
+    }
+    return new Range(start, end);
+  }
+
+  @SuppressWarnings("BooleanMethodIsAlwaysInverted")
+  private boolean covers(@Nullable Integer fromVersion, @Nullable Integer toVersion) {
+    return fromVersion != null && toVersion != null && baseVersion != null && lastVersion != null
+        && baseVersion <= fromVersion && fromVersion <= toVersion && toVersion <= lastVersion;
+  }
+
+  /**
+   * @param stayBefore whether a position at the start of an insertion stays before the inserted text
+   */
+  @NotNull
+  private static Position shift(@NotNull Position position, @NotNull Edit edit, boolean stayBefore) {
+    final var start = edit.range().getStart();
+    final var end = edit.range().getEnd();
+    final var cmpStart = compare(position, start);
+    if (cmpStart < 0 || cmpStart == 0 && stayBefore) {
+      return position;
+    }
+    if (compare(position, end) < 0) {
+      // inside the replaced text
+      return start;
+    }
+
+    final var newEndLine = start.getLine() + edit.insertedLines();
+    final var newEndCharacter = edit.insertedLines() == 0
+        ? start.getCharacter() + edit.lastLineLength()
+        : edit.lastLineLength();
+    if (position.getLine() == end.getLine()) {
+      return new Position(newEndLine, newEndCharacter + position.getCharacter() - end.getCharacter());
+    }
+    return new Position(position.getLine() - end.getLine() + newEndLine, position.getCharacter());
+  }
+
+  private static int compare(@NotNull Position first, @NotNull Position second) {
+    return first.getLine() != second.getLine()
+        ? Integer.compare(first.getLine(), second.getLine())
+        : Integer.compare(first.getCharacter(), second.getCharacter());
+  }
+}
@@ -2,13 +2,23 @@ package org.rri.ideals.server;
 
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.UserDataHolderEx;
 import org.eclipse.lsp4j.ClientCapabilities;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * The client of a session together with its capabilities, created for each project of the session.
+ * <p>
+ * A project is shared by all the sessions working with its root (see {@link ProjectService}), so it has
+ * a context for each of them. The notifications about a document go to the sessions which have it open
+ * (see {@link ManagedDocuments#getOwners(LspPath)}), the ones about the whole project go to all of them.
+ */
 public class LspContext {
   @NotNull
   private final ClientCapabilities clientCapabilities;
@@ -19,7 +29,7 @@ public class LspContext {
   @NotNull
   private final Map<String, String> config = new HashMap<>();
 
-  private static final Key<LspContext> KEY = new Key<>(LspContext.class.getCanonicalName());
+  private static final Key<List<LspContext>> KEY = new Key<>(LspContext.class.getCanonicalName());
 
   private LspContext(@NotNull MyLanguageClient client,
                      @NotNull ClientCapabilities clientCapabilities) {
@@ -27,19 +37,42 @@ public class LspContext {
     this.clientCapabilities = clientCapabilities;
   }
 
-  public static void createContext(@NotNull Project project,
-                                   @NotNull MyLanguageClient client,
-                                   @NotNull ClientCapabilities clientCapabilities) {
-    project.putUserData(KEY, new LspContext(client, clientCapabilities));
+  @NotNull
+  public static LspContext createContext(@NotNull Project project,
+                                         @NotNull MyLanguageClient client,
+                                         @NotNull ClientCapabilities clientCapabilities) {
+    final var context = new LspContext(client, clientCapabilities);
+    ((UserDataHolderEx) project).putUserDataIfAbsent(KEY, new CopyOnWriteArrayList<>()).add(context);
+    return context;
+  }
+
+  /**
+   * Forgets the context when its session leaves the project.
+   */
+  public static void removeContext(@NotNull Project project, @NotNull LspContext context) {
+    final var contexts = project.getUserData(KEY);
+    if (contexts != null) {
+      contexts.remove(context);
+    }
   }
 
+  /**
+   * @return the contexts of all the sessions working with the project
+   */
   @NotNull
-  public static LspContext getContext(@NotNull Project project) {
+  public static List<@NotNull LspContext> getContexts(@NotNull Project project) {
     final var result = project.getUserData(KEY);
-    if (result == null)
-      throw new IllegalStateException("LSP context hasn't been created");
+    return result != null ? result : List.of();
+  }
 
-    return result;
+  /**
+   * @return the contexts of the sessions which have the document open; all the contexts of the project if nobody
+   * has it open (e.g. the files analyzed in background)
+   */
+  @NotNull
+  public static List<@NotNull LspContext> getContexts(@NotNull Project project, @NotNull LspPath path) {
+    final var owners = project.getService(ManagedDocuments.class).getOwners(path);
+    return owners.isEmpty() ? getContexts(project) : owners;
   }
 
   @NotNull
@@ -47,6 +80,25 @@ public class LspContext {
     return clientCapabilities;
   }
 
+  /**
+   * @return whether the client asks for the diagnostics itself ({@code textDocument/diagnostic}) instead of
+   * waiting for them to be published
+   */
+  public boolean isPullDiagnosticsSupported() {
+    return clientCapabilities.getTextDocument() != null && clientCapabilities.getTextDocument().getDiagnostic() != null;
+  }
+
+  /**
+   * @return whether the client can be asked to pull the diagnostics of all its documents again
+   * ({@code workspace/diagnostic/refresh})
+   */
+  public boolean isDiagnosticsRefreshSupported() {
+    final var workspace = clientCapabilities.getWorkspace();
+    return workspace != null
+        && workspace.getDiagnostics() != null
+        && Boolean.TRUE.equals(workspace.getDiagnostics().getRefreshSupport());
+  }
+
   public @NotNull MyLanguageClient getClient() {
     return client;
   }
@@ -3,35 +3,70 @@ package org.rri.ideals.server;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileContentChangeEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.util.containers.ContainerUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.lang.ref.WeakReference;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Objects;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Normalized URI of a file.
+ * <p>
+ * Instances are interned: the same URI (as it comes from the client or IDEA) yields the same instance while it is
+ * in use, so repeated requests for a document don't normalize its URI again. The found {@link VirtualFile} is cached
+ * weakly until a VFS event which may change the URI-to-file mapping (creation, deletion, move, rename).
+ */
 public class LspPath {
+  // raw URI -> path; the entries are dropped as soon as nobody uses the path
+  private static final Map<String, LspPath> byRawUri = ContainerUtil.createConcurrentWeakValueMap();
+  // normalized URI -> path, so that the paths built from different raw URIs of the same file are the same instance
+  private static final Map<String, LspPath> byNormalizedUri = ContainerUtil.createConcurrentWeakValueMap();
+
+  // incremented on every VFS event which may invalidate the cached virtual files
+  private static final AtomicLong vfsStructureStamp = new AtomicLong();
+
   @NotNull
   private final String normalizedUri;
 
-  private LspPath(@NotNull String uri) {
-    this.normalizedUri = normalizeUri(uri);
+  private final int hash;
+
+  @Nullable
+  private volatile CachedFile cachedFile;
+
+  private LspPath(@NotNull String normalizedUri) {
+    this.normalizedUri = normalizedUri;
+    this.hash = normalizedUri.hashCode();
   }
 
   @NotNull
   public static LspPath fromLocalPath(@NotNull Path localPath) {
-    return new LspPath(localPath.toUri().toString());
+    return fromLspUri(localPath.toUri().toString());
   }
 
   @NotNull
   public static LspPath fromLspUri(@NotNull String uri) {
-    return new LspPath(uri);
+    final var existing = byRawUri.get(uri);
+    if (existing != null) {
+      return existing;
+    }
+    final var normalized = normalizeUri(uri);
+    final var path = byNormalizedUri.computeIfAbsent(normalized, LspPath::new);
+    byRawUri.putIfAbsent(uri, path);
+    return path;
   }
 
   @NotNull
@@ -55,12 +90,28 @@ public class LspPath {
 
   @Nullable
   public VirtualFile refreshAndFindVirtualFile() {
-    return VirtualFileManager.getInstance().refreshAndFindFileByUrl(normalizedUri);
+    return cache(VirtualFileManager.getInstance().refreshAndFindFileByUrl(normalizedUri), vfsStructureStamp.get());
   }
 
   @Nullable
   public VirtualFile findVirtualFile() {
-    return VirtualFileManager.getInstance().findFileByUrl(normalizedUri);
+    final var stamp = vfsStructureStamp.get();
+    final var cached = cachedFile;
+    if (cached != null && cached.stamp == stamp) {
+      final var file = cached.file.get();
+      if (file != null && file.isValid()) {
+        return file;
+      }
+    }
+    return cache(VirtualFileManager.getInstance().findFileByUrl(normalizedUri), stamp);
+  }
+
+  // the stamp is taken before the lookup, so a concurrent VFS event makes the cached file stale rather than lost
+  @Nullable
+  private VirtualFile cache(@Nullable VirtualFile file, long stamp) {
+    // missing files aren't cached: they are looked up again until created
+    cachedFile = file == null ? null : new CachedFile(new WeakReference<>(file), stamp);
+    return file;
   }
 
   @Override
@@ -73,12 +124,27 @@ public class LspPath {
     if (this == o) return true;
     if (o == null || getClass() != o.getClass()) return false;
     LspPath lspPath = (LspPath) o;
-    return normalizedUri.equals(lspPath.normalizedUri);
+    return hash == lspPath.hash && normalizedUri.equals(lspPath.normalizedUri);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(normalizedUri);
+    return hash;
+  }
+
+  private record CachedFile(@NotNull WeakReference<VirtualFile> file, long stamp) {
+  }
+
+  /**
+   * Invalidates the cached virtual files of all paths. Content changes don't affect the mapping and are ignored.
+   */
+  public static final class VfsListener implements BulkFileListener {
+    @Override
+    public void after(@NotNull List<? extends @NotNull VFileEvent> events) {
+      if (!ContainerUtil.all(events, event -> event instanceof VFileContentChangeEvent)) {
+        vfsStructureStamp.incrementAndGet();
+      }
+    }
   }
 
   private static final Pattern schemeRegex = Pattern.compile("^(\\w[\\w+-.]+):/+");
@@ -0,0 +1,62 @@
+package org.rri.ideals.server;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps root paths to values and finds the value of the innermost root containing the given path.
+ * <p>
+ * A lookup takes one hash lookup per path segment, so it doesn't depend on the number of roots.
+ * Thread-safe.
+ */
+public class LspPathIndex<T> {
+  @NotNull
+  private final Map<String, T> roots = new ConcurrentHashMap<>();
+
+  public void put(@NotNull LspPath root, @NotNull T value) {
+    roots.put(root.toLspUri(), value);
+  }
+
+  @Nullable
+  public T remove(@NotNull LspPath root) {
+    return roots.remove(root.toLspUri());
+  }
+
+  public void clear() {
+    roots.clear();
+  }
+
+  public boolean isEmpty() {
+    return roots.isEmpty();
+  }
+
+  @NotNull
+  public Collection<T> values() {
+    return roots.values();
+  }
+
+  /**
+   * @return the value of the innermost root which is the path itself or one of its ancestors;
+   * {@code null} if there's no such root
+   */
+  @Nullable
+  public T find(@NotNull LspPath path) {
+    var candidate = path.toLspUri();
+    while (true) {
+      final var value = roots.get(candidate);
+      if (value != null) {
+        return value;
+      }
+
+      final var separator = candidate.lastIndexOf('/');
+      if (separator < 0) {
+        return null;
+      }
+      candidate = candidate.substring(0, separator);
+    }
+  }
+}
@@ -7,24 +7,34 @@ import com.intellij.openapi.progress.ProgressManagerListener;
 import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.messages.MessageBusConnection;
 import org.eclipse.lsp4j.*;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
+import org.eclipse.lsp4j.jsonrpc.services.JsonNotification;
 import org.eclipse.lsp4j.services.LanguageClient;
 import org.eclipse.lsp4j.services.LanguageClientAware;
 import org.eclipse.lsp4j.services.LanguageServer;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.rri.ideals.server.util.Metrics;
+import org.rri.ideals.server.diagnostics.DiagnosticsService;
+import org.rri.ideals.server.diagnostics.WorkspaceDiagnosticsScanner;
 import org.rri.ideals.server.util.MiscUtil;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
-public class LspServer implements LanguageServer, LanguageClientAware, LspSession, DumbService.DumbModeListener {
+public class LspServer implements LanguageServer, LanguageClientAware, LspSession {
   private final static Logger LOG = Logger.getInstance(LspServer.class);
   private final MyTextDocumentService myTextDocumentService = new MyTextDocumentService(this);
   private final MyWorkspaceService myWorkspaceService = new MyWorkspaceService(this);
@@ -34,49 +44,128 @@ public class LspServer implements LanguageServer, LanguageClientAware, LspSessio
   @Nullable
   private MyLanguageClient client = null;
 
+  /**
+   * Projects of the workspace folders in the order they were added; the first one is the primary project.
+   * Guarded by {@code this}.
+   */
+  @NotNull
+  private final Map<LspPath, FolderProject> folders = new LinkedHashMap<>();
+
+  @NotNull
+  private final LspPathIndex<FolderProject> folderIndex = new LspPathIndex<>();
+
   @Nullable
-  private Project project = null;
+  private ClientCapabilities clientCapabilities = null;
 
   public LspServer() {
     messageBusConnection = ApplicationManager.getApplication().getMessageBus().connect();
     messageBusConnection.subscribe(ProgressManagerListener.TOPIC, new WorkDoneProgressReporter());
   }
 
+  /**
+   * Returns the capabilities without waiting for the projects to open. The projects are opened
+   * in background, and requests and notifications needing them are postponed until they're ready
+   * (see {@link #getProjectAsync(LspPath)} and {@link #runWhenReady(LspPath, Consumer)}).
+   */
   @NotNull
   @Override
   public CompletableFuture<InitializeResult> initialize(@NotNull InitializeParams params) {
     return CompletableFuture.supplyAsync(() -> {
       final var workspaceFolders = params.getWorkspaceFolders();
-      var oldProject = project;
-      if(oldProject != null) {
-        if(oldProject.isOpen()) {
-          LOG.info("Closing old project: " + oldProject);
-          ProjectService.getInstance().closeProject(oldProject);
-        }
-        project = null;
-      }
+      releaseProjects();
 
       if (workspaceFolders == null) {
         return new InitializeResult(new ServerCapabilities());
       }
 
-      //   // todo how about multiple folders
-      final var projectRoot = LspPath.fromLspUri(workspaceFolders.get(0).getUri());
+      synchronized (this) {
+        clientCapabilities = params.getCapabilities();
+      }
+      workspaceFolders.forEach(folder -> addWorkspaceFolder(LspPath.fromLspUri(folder.getUri())));
 
-      Metrics.run(() -> "initialize: " + projectRoot, () -> {
+      return new InitializeResult(defaultServerCapabilities(params.getCapabilities()));
+    });
+  }
 
-        LOG.info("Opening project: " + projectRoot);
-        project = ProjectService.getInstance().resolveProjectFromRoot(projectRoot);
+  @Override
+  public void initialized(InitializedParams params) {
+    registerFileWatchers();
+  }
 
-        assert client != null;
-        LspContext.createContext(project, client, params.getCapabilities());
-        project.getMessageBus().connect().subscribe(DumbService.DUMB_MODE, this);
+  /**
+   * Asks the client to report the changes of all the workspace files made outside the editor (e.g. by VCS or
+   * code generators), see {@link MyWorkspaceService#didChangeWatchedFiles}.
+   */
+  private void registerFileWatchers() {
+    final ClientCapabilities capabilities;
+    synchronized (this) {
+      capabilities = clientCapabilities;
+    }
+    final var dynamicRegistration = Optional.ofNullable(capabilities)
+        .map(ClientCapabilities::getWorkspace)
+        .map(WorkspaceClientCapabilities::getDidChangeWatchedFiles)
+        .map(DidChangeWatchedFilesCapabilities::getDynamicRegistration)
+        .orElse(false);
+    if (!dynamicRegistration) {
+      LOG.info("Client doesn't support dynamic registration of file watchers");
+      return;
+    }
 
-        LOG.info("LSP was initialized. Project: " + project);
-      });
+    final var options = new DidChangeWatchedFilesRegistrationOptions(
+        List.of(new FileSystemWatcher(Either.forLeft("**/*"))));
+    getClient().registerCapability(new RegistrationParams(
+        List.of(new Registration("ideals/watchedFiles", "workspace/didChangeWatchedFiles", options))));
+  }
+
+  /**
+   * Opens the project of the folder in background; does nothing if the folder is already a part of the session.
+   */
+  @Override
+  public synchronized void addWorkspaceFolder(@NotNull LspPath root) {
+    if (folders.containsKey(root)) {
+      return;
+    }
 
-      return new InitializeResult(defaultServerCapabilities());
+    LOG.info("Opening project: " + root);
+    final var startedAt = System.nanoTime();
+    final var folder = new FolderProject(root, ProjectService.getInstance().resolveProjectFromRoot(root));
+    folder.ready = folder.acquired.thenApply(resolved -> {
+      setupProject(folder, resolved);
+      LOG.info("Project was initialized in " + (System.nanoTime() - startedAt) / 1_000_000 + " ms: " + resolved);
+      return resolved;
     });
+    folder.notifications = folder.ready;
+
+    folders.put(root, folder);
+    folderIndex.put(root, folder);
+  }
+
+  @Override
+  public void removeWorkspaceFolder(@NotNull LspPath root) {
+    final FolderProject folder;
+    synchronized (this) {
+      folder = folders.remove(root);
+      if (folder == null) {
+        return;
+      }
+      folderIndex.remove(root);
+      folder.detach();
+    }
+    folder.release();
+  }
+
+  private synchronized void setupProject(@NotNull FolderProject folder, @NotNull Project resolved) {
+    if (folder.detached) {
+      // the folder was removed or the session was stopped while the project was opening
+      return;
+    }
+
+    assert client != null;
+    assert clientCapabilities != null;
+    folder.context = LspContext.createContext(resolved, client, clientCapabilities);
+    folder.busConnection = resolved.getMessageBus().connect();
+    folder.busConnection.subscribe(DumbService.DUMB_MODE, new DumbModeNotifier(resolved));
+    resolved.getService(WorkspaceDiagnosticsScanner.class).start(folder.context);
   }
 
   @NotNull
@@ -90,7 +179,7 @@ public class LspServer implements LanguageServer, LanguageClientAware, LspSessio
   }
 
   @NotNull
-  private ServerCapabilities defaultServerCapabilities() {
+  private ServerCapabilities defaultServerCapabilities(@NotNull ClientCapabilities clientCapabilities) {
 
     return MiscUtil.with(new ServerCapabilities(), it -> {
       it.setTextDocumentSync(MiscUtil.with(new TextDocumentSyncOptions(), (syncOptions) -> {
@@ -99,14 +188,18 @@ public class LspServer implements LanguageServer, LanguageClientAware, LspSessio
         syncOptions.setSave(new SaveOptions(true));
       }));
 
-      it.setWorkspace(MiscUtil.with(new WorkspaceServerCapabilities(), wsc ->
-          wsc.setFileOperations(MiscUtil.with(
-              new FileOperationsServerCapabilities(),
-              foc -> foc.setDidRename(new FileOperationOptions(
-                  List.of(new FileOperationFilter(new FileOperationPattern("**/*"), "file"))
-              ))
-          ))
-      ));
+      it.setWorkspace(MiscUtil.with(new WorkspaceServerCapabilities(), wsc -> {
+        wsc.setWorkspaceFolders(MiscUtil.with(new WorkspaceFoldersOptions(), wfo -> {
+          wfo.setSupported(true);
+          wfo.setChangeNotifications(true);
+        }));
+        wsc.setFileOperations(MiscUtil.with(
+            new FileOperationsServerCapabilities(),
+            foc -> foc.setDidRename(new FileOperationOptions(
+                List.of(new FileOperationFilter(new FileOperationPattern("**/*"), "file"))
+            ))
+        ));
+      }));
 
 //      it.setHoverProvider(true);
       it.setCompletionProvider(defaultCompletionOptions());
@@ -133,6 +226,9 @@ public class LspServer implements LanguageServer, LanguageClientAware, LspSessio
               cao -> cao.setResolveProvider(true)
           )
       );
+      if (clientCapabilities.getTextDocument() != null && clientCapabilities.getTextDocument().getDiagnostic() != null) {
+        it.setDiagnosticProvider(new DiagnosticRegistrationOptions(true, false));
+      }
       it.setExperimental(null);
 
     });
@@ -160,11 +256,23 @@ public class LspServer implements LanguageServer, LanguageClientAware, LspSessio
 
   public void stop() {
     messageBusConnection.disconnect();
+    releaseProjects();
+  }
 
-    if (project != null) {
-      ProjectService.getInstance().closeProject(project);
-      this.project = null;
+  /**
+   * Gives the projects back to the pool. The projects are shared with other sessions
+   * working with the same roots, so each must be released exactly once per session.
+   */
+  private void releaseProjects() {
+    final List<FolderProject> released;
+    synchronized (this) {
+      released = new ArrayList<>(folders.values());
+      folders.clear();
+      folderIndex.clear();
+      released.forEach(FolderProject::detach);
     }
+
+    released.forEach(FolderProject::release);
   }
 
   @Override
@@ -177,6 +285,15 @@ public class LspServer implements LanguageServer, LanguageClientAware, LspSessio
     return myWorkspaceService;
   }
 
+  /**
+   * The idea/visibleRanges notification is sent from the client to the server when the ranges of a document shown
+   * in the client's editors change; the problems in these ranges are reported first.
+   */
+  @JsonNotification("idea/visibleRanges")
+  public void visibleRanges(@NotNull VisibleRangesParams params) {
+    getTextDocumentService().visibleRanges(params);
+  }
+
   @Override
   public void connect(@NotNull LanguageClient client) {
     assert client instanceof MyLanguageClient;
@@ -189,31 +306,261 @@ public class LspServer implements LanguageServer, LanguageClientAware, LspSessio
     return client;
   }
 
+  /**
+   * Waits until the primary project (the one of the first workspace folder) is opened.
+   */
   @NotNull
   @Override
   public Project getProject() {
-    if (project == null)
-      throw new IllegalStateException("LSP session is not yet initialized");
-    return project;
+    return getPrimaryFolder().waitForProject();
+  }
+
+  /**
+   * Waits until the project of the innermost workspace folder containing the path is opened.
+   * Paths outside the workspace folders belong to the primary project.
+   */
+  @NotNull
+  @Override
+  public Project getProject(@NotNull LspPath path) {
+    return getFolder(path).waitForProject();
+  }
+
+  /**
+   * Waits until the projects of all the workspace folders are opened; the projects failed to open are skipped.
+   */
+  @NotNull
+  @Override
+  public List<@NotNull Project> getProjects() {
+    return getProjectsAsync().join();
+  }
+
+  @NotNull
+  @Override
+  public CompletableFuture<@NotNull Project> getProjectAsync(@NotNull LspPath path) {
+    final var folder = getFolder(path);
+    return folder.notifications.handle((project, error) -> {
+      if (error != null) {
+        throw new IllegalStateException("Project couldn't be opened: " + folder.root, error);
+      }
+      return project;
+    });
+  }
+
+  @NotNull
+  @Override
+  public CompletableFuture<@NotNull List<@NotNull Project>> getProjectsAsync() {
+    final List<FolderProject> snapshot;
+    synchronized (this) {
+      snapshot = new ArrayList<>(folders.values());
+    }
+
+    final var projects = snapshot.stream()
+        .map(folder -> folder.notifications.handle((project, error) -> {
+          if (error != null) {
+            LOG.warn("Project is unavailable: " + folder.root, error);
+            return null;
+          }
+          return project;
+        }))
+        .toList();
+    return CompletableFuture.allOf(projects.toArray(CompletableFuture[]::new))
+        .thenApply(ignored -> projects.stream()
+            .map(CompletableFuture::join)
+            .filter(Objects::nonNull)
+            .toList());
   }
 
   @Override
-  public void enteredDumbMode() {
-    LOG.info("Entered dumb mode. Notifying client...");
-    getClient().notifyIndexStarted();
+  public void runWhenReady(@NotNull LspPath path, @NotNull Consumer<@NotNull Project> action) {
+    getFolder(path).runWhenReady(action);
+  }
+
+  @NotNull
+  private FolderProject getFolder(@NotNull LspPath path) {
+    final var folder = folderIndex.find(path);
+    return folder != null ? folder : getPrimaryFolder();
+  }
+
+  @NotNull
+  private synchronized FolderProject getPrimaryFolder() {
+    if (folders.isEmpty())
+      throw new IllegalStateException("LSP session is not yet initialized");
+    return folders.values().iterator().next();
   }
 
+  /**
+   * @return the future completed when the projects of all the current workspace folders are opened and set up
+   */
+  @NotNull
+  public synchronized CompletableFuture<Void> whenProjectsReady() {
+    return CompletableFuture.allOf(folders.values().stream()
+        .map(it -> it.ready)
+        .toArray(CompletableFuture[]::new));
+  }
+
+  @NotNull
   @Override
-  public void exitDumbMode() {
-    LOG.info("Exited dumb mode. Refreshing diagnostics...");
-    getClient().notifyIndexFinished();
-    getTextDocumentService().refreshDiagnostics();
+  public LspContext getContext(@NotNull Project project) {
+    final var context = folderIndex.values().stream()
+        .filter(it -> it.getProjectNow() == project)
+        .map(it -> it.context)
+        .filter(Objects::nonNull)
+        .findFirst()
+        .orElse(null);
+    if (context == null)
+      throw new IllegalStateException("Project isn't set up for the session: " + project);
+    return context;
+  }
+
+  private boolean isSessionProject(@NotNull Project project) {
+    return folderIndex.values().stream().anyMatch(it -> it.getProjectNow() == project);
+  }
+
+  /**
+   * A project opened for a workspace folder.
+   */
+  private static final class FolderProject {
+    @NotNull
+    private final LspPath root;
+
+    /**
+     * The project acquired from {@link ProjectService}; it's released when the folder is removed from the session.
+     */
+    @NotNull
+    private final CompletableFuture<Project> acquired;
+
+    /**
+     * Completed when the project is opened and set up for the session.
+     */
+    @NotNull
+    private volatile CompletableFuture<Project> ready;
+
+    /**
+     * Completed when the project is ready and the notifications queued while it was opening are handled.
+     * Only the message thread of the session queues notifications.
+     */
+    @NotNull
+    private volatile CompletableFuture<Project> notifications;
+
+    @Nullable
+    private MessageBusConnection busConnection;
+
+    /**
+     * The context of the session in the project; set when the project is set up for the session.
+     */
+    @Nullable
+    private volatile LspContext context;
+
+    private volatile boolean detached;
+
+    private FolderProject(@NotNull LspPath root, @NotNull CompletableFuture<Project> acquired) {
+      this.root = root;
+      this.acquired = acquired;
+      this.ready = acquired;
+      this.notifications = acquired;
+    }
+
+    private void runWhenReady(@NotNull Consumer<@NotNull Project> action) {
+      final var tail = notifications;
+      if (tail.isDone() && !tail.isCompletedExceptionally()) {
+        action.accept(tail.join());
+        return;
+      }
+
+      notifications = tail.thenApplyAsync(project -> {
+        try {
+          action.accept(project);
+        } catch (RuntimeException e) {
+          // the notifications queued after it must be handled anyway
+          LOG.error("Error handling a notification for the project: " + project, e);
+        }
+        return project;
+      }, AppExecutorUtil.getAppExecutorService());
+      notifications.exceptionally(error -> {
+        LOG.warn("Notification is dropped, project couldn't be opened: " + root, error);
+        return null;
+      });
+    }
+
+    @NotNull
+    private Project waitForProject() {
+      final var future = ready;
+      if (!future.isDone() && ApplicationManager.getApplication().isDispatchThread())
+        // opening the project needs EDT, so waiting here would hang
+        throw new IllegalStateException("Project is not yet opened: " + root);
+
+      try {
+        return future.join();
+      } catch (CompletionException e) {
+        throw new IllegalStateException("Project couldn't be opened: " + root, e.getCause());
+      }
+    }
+
+    @Nullable
+    private Project getProjectNow() {
+      final var future = acquired;
+      return future.isDone() && !future.isCompletedExceptionally() ? future.getNow(null) : null;
+    }
+
+    // must be called under the session lock
+    private void detach() {
+      detached = true;
+      if (busConnection != null) {
+        busConnection.disconnect();
+        busConnection = null;
+      }
+    }
+
+    private void release() {
+      // if the project hasn't opened yet, it's released as soon as it opens;
+      // if it fails to open, the reference has already been dropped by ProjectService
+      acquired.thenAccept(it -> {
+        if (!it.isDisposed()) {
+          leave(it);
+          LOG.info("Releasing project: " + it);
+          ProjectService.getInstance().closeProject(it);
+        }
+      });
+    }
+
+    // the documents of the session are closed, the other sessions sharing the project keep theirs
+    private void leave(@NotNull Project project) {
+      final var leaving = context;
+      if (leaving == null) {
+        return;
+      }
+      final var diagnostics = project.getService(DiagnosticsService.class);
+      project.getService(ManagedDocuments.class).stopManaging(leaving).forEach(diagnostics::haltDiagnostics);
+      LspContext.removeContext(project, leaving);
+    }
+  }
+
+  private class DumbModeNotifier implements DumbService.DumbModeListener {
+    @NotNull
+    private final Project project;
+
+    private DumbModeNotifier(@NotNull Project project) {
+      this.project = project;
+    }
+
+    @Override
+    public void enteredDumbMode() {
+      LOG.info("Entered dumb mode. Notifying client...");
+      getClient().notifyIndexStarted();
+    }
+
+    @Override
+    public void exitDumbMode() {
+      LOG.info("Exited dumb mode. Refreshing diagnostics...");
+      getClient().notifyIndexFinished();
+      getTextDocumentService().refreshDiagnostics(project);
+    }
   }
 
   private class WorkDoneProgressReporter implements ProgressManagerListener {
     @Override
     public void afterTaskStart(@NotNull Task task, @NotNull ProgressIndicator indicator) {
-      if(task.getProject() == null || !task.getProject().equals(project))
+      if(task.getProject() == null || !isSessionProject(task.getProject()))
         return;
 
       var client = LspServer.this.client;
@@ -239,7 +586,7 @@ public class LspServer implements LanguageServer, LanguageClientAware, LspSessio
 
     @Override
     public void afterTaskFinished(@NotNull Task task) {
-      if(task.getProject() != null && !task.getProject().equals(project))
+      if(task.getProject() != null && !isSessionProject(task.getProject()))
         return;
 
       var client = LspServer.this.client;
@@ -3,6 +3,41 @@ package org.rri.ideals.server;
 import com.intellij.openapi.project.Project;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
 public interface LspSession {
   @NotNull Project getProject();
+
+  @NotNull Project getProject(@NotNull LspPath path);
+
+  @NotNull List<@NotNull Project> getProjects();
+
+  /**
+   * @return the future completed with the project of the path when it's opened and the notifications
+   * about its documents received before are handled (see {@link #runWhenReady(LspPath, Consumer)})
+   */
+  @NotNull CompletableFuture<@NotNull Project> getProjectAsync(@NotNull LspPath path);
+
+  /**
+   * @return the future completed with the projects of all the workspace folders when they're opened;
+   * the projects failed to open are skipped
+   */
+  @NotNull CompletableFuture<@NotNull List<@NotNull Project>> getProjectsAsync();
+
+  /**
+   * Handles a notification about the path without blocking the message thread: right away if the project is ready,
+   * otherwise when it's opened. The notifications of the same project are handled in the order they were received.
+   */
+  void runWhenReady(@NotNull LspPath path, @NotNull Consumer<@NotNull Project> action);
+
+  /**
+   * @return the context of the session in the given project, which must be one of the session's projects
+   */
+  @NotNull LspContext getContext(@NotNull Project project);
+
+  void addWorkspaceFolder(@NotNull LspPath root);
+
+  void removeWorkspaceFolder(@NotNull LspPath root);
 }
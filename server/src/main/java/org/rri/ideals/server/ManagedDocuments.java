@@ -8,22 +8,52 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.vfs.VirtualFileManager;
 import com.intellij.psi.PsiDocumentManager;
 import org.eclipse.lsp4j.*;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.rri.ideals.server.util.MiscUtil;
 import org.rri.ideals.server.util.TextUtil;
+import org.rri.ideals.server.vfs.VfsRefresher;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 @Service(Service.Level.PROJECT)
 final public class ManagedDocuments {
   private static final Logger LOG = Logger.getInstance(ManagedDocuments.class);
-  private final ConcurrentHashMap<LspPath, VersionedTextDocumentIdentifier> docs = new ConcurrentHashMap<>();
+
+  // the latest client's state of the documents; updated as soon as a notification is received
+  private final ConcurrentHashMap<LspPath, DocumentSnapshot> docs = new ConcurrentHashMap<>();
+
+  // the changes received from the client but not applied to the documents yet
+  private final ConcurrentHashMap<LspPath, List<TextDocumentContentChangeEvent>> pendingChanges = new ConcurrentHashMap<>();
+
+  // the sessions which have the documents open, with the versions of the documents in their clients;
+  // guarded by changesLock
+  private final HashMap<LspPath, Map<LspContext, Integer>> owners = new HashMap<>();
+
+  // updates of the snapshots, the buffered changes and the owners which must be seen together
+  private final Object changesLock = new Object();
+
+  // the versions of the snapshots are the server's revisions, so that the versions of several clients don't mix
+  private final AtomicInteger revisions = new AtomicInteger();
+
+  // the edits applied since the document was opened, see EditJournal
+  private final ConcurrentHashMap<LspPath, EditJournal> journals = new ConcurrentHashMap<>();
+
+  // the line of the latest change; large files are analyzed around it
+  private final ConcurrentHashMap<LspPath, Integer> lastChangedLines = new ConcurrentHashMap<>();
+
+  // the ranges shown in the client's editors, as reported by idea/visibleRanges
+  private final ConcurrentHashMap<LspPath, List<Range>> visibleRanges = new ConcurrentHashMap<>();
 
   @NotNull
   private final Project project;
@@ -32,7 +62,11 @@ final public class ManagedDocuments {
     this.project = project;
   }
 
-  public void startManaging(@NotNull TextDocumentItem textDocument) {
+  /**
+   * Starts managing the document opened by the session. If another session has the document open already, the
+   * document is shared; the text of the latest opened one wins.
+   */
+  public void startManaging(@NotNull LspContext owner, @NotNull TextDocumentItem textDocument) {
     String uri = textDocument.getUri();
 
     if (!canAccept(uri)) {
@@ -40,10 +74,26 @@ final public class ManagedDocuments {
     }
 
     final var path = LspPath.fromLspUri(uri);
-
-    if (docs.containsKey(path)) {
-      LOG.warn("URI was opened again without being closed, resetting: " + path);
-      docs.remove(path);
+    final var text = normalizeText(textDocument.getText());
+
+    synchronized (changesLock) {
+      final var owned = owners.computeIfAbsent(path, ignored -> new HashMap<>());
+      final var reopened = owned.containsKey(owner);
+      owned.put(owner, textDocument.getVersion());
+
+      final var current = docs.get(path);
+      if (current != null) {
+        if (current.getText().equals(text)) {
+          LOG.debug("Document is opened by one more session: " + path);
+          return;
+        }
+        LOG.warn(reopened
+            ? "URI was opened again without being closed, resetting: " + path
+            : "URI was opened by another session with a different text, resetting: " + path);
+        docs.remove(path);
+        pendingChanges.remove(path);
+        lastChangedLines.remove(path);
+      }
     }
     LOG.debug("Handling textDocument/didOpen for: " + path);
 
@@ -62,7 +112,7 @@ final public class ManagedDocuments {
 
         if (doc.isWritable()) {
           // set IDEA's copy of the document to have the text with potential unsaved in-memory changes from the client
-          doc.setText(normalizeText(textDocument.getText()));
+          TextUtil.replaceChangedRange(doc, text);
           PsiDocumentManager.getInstance(project).commitDocument(doc);
         }
 
@@ -78,16 +128,15 @@ final public class ManagedDocuments {
 */
       });
 
-      var docVersion = Optional.of(textDocument.getVersion())
-          .filter(version -> version != 0)
-          .orElse(null);
-      docs.put(path, new VersionedTextDocumentIdentifier(uri, docVersion));
+      final var revision = revisions.incrementAndGet();
+      docs.put(path, DocumentSnapshot.create(revision, text));
+      journals.put(path, new EditJournal(revision));
 
     }));
   }
 
 
-  public void updateDocument(@NotNull DidChangeTextDocumentParams params) {
+  public void updateDocument(@NotNull LspContext owner, @NotNull DidChangeTextDocumentParams params) {
     var textDocument = params.getTextDocument();
     var contentChanges = params.getContentChanges();
 
@@ -97,18 +146,89 @@ final public class ManagedDocuments {
 
     final var path = LspPath.fromLspUri(uri);
 
-    var managedTextDocId = docs.get(path);
-    if (managedTextDocId == null)
-      throw new IllegalArgumentException("document isn't being managed: " + uri);
+    synchronized (changesLock) {
+      var managedSnapshot = docs.get(path);
+      final var owned = owners.get(path);
+      final var clientVersion = owned != null ? owned.get(owner) : null;
+      if (managedSnapshot == null || clientVersion == null)
+        throw new IllegalArgumentException("document isn't being managed: " + uri);
+
+      // Version number of the client's document should be (theirs - number of content changes)
+      // If it's 0, the client opened the document without a version
+      if (clientVersion != 0 && clientVersion != (textDocument.getVersion() - contentChanges.size())) {
+        LOG.warn(String.format("Version mismatch on document change - " +
+            "ours: %d, theirs: %d", clientVersion, textDocument.getVersion()));
+        return;
+      }
+      owned.put(owner, textDocument.getVersion());
+
+      // the changes are applied in batches on EDT; the snapshot is the ground truth for the requests right away
+      final var revision = revisions.incrementAndGet();
+      final var journal = journals.get(path);
+      var snapshot = managedSnapshot;
+      for (var change : contentChanges) {
+        if (journal != null) {
+          journal.record(revision, snapshot, change);
+        }
+        snapshot = snapshot.withChanges(revision, List.of(change));
+      }
+      // the buffered changes always lead from the text of the document to the latest snapshot
+      pendingChanges.merge(path, new ArrayList<>(contentChanges), (pending, added) -> {
+        pending.addAll(added);
+        return pending;
+      });
+      docs.put(path, snapshot);
+    }
+    contentChanges.stream()
+        .map(TextDocumentContentChangeEvent::getRange)
+        .filter(Objects::nonNull)
+        .reduce((first, second) -> second)
+        .ifPresent(range -> lastChangedLines.put(path, range.getStart().getLine()));
 
-    // Version number of our document should be (theirs - number of content changes)
-    // If stored version is null, this means the document has been just saved or opened
-    if (managedTextDocId.getVersion() != null && managedTextDocId.getVersion() != (textDocument.getVersion() - contentChanges.size())) {
-      LOG.warn(String.format("Version mismatch on document change - " +
-          "ours: %d, theirs: %d", managedTextDocId.getVersion(), textDocument.getVersion()));
+    ApplicationManager.getApplication().invokeLater(() -> applyPendingChanges(path), project.getDisposed());
+  }
+
+  /**
+   * Brings the PSI of the document up to date with the client: applies the buffered changes and commits the document.
+   * <p>
+   * Must be called before any PSI-based computation on the document. If called outside EDT, it must not be called
+   * under a read action.
+   */
+  public void commitDocument(@NotNull LspPath path) {
+    final var application = ApplicationManager.getApplication();
+    if (!application.isDispatchThread()) {
+      if (!pendingChanges.containsKey(path) && !isUncommitted(path)) {
+        return;
+      }
+      application.invokeAndWait(() -> commitDocument(path));
       return;
     }
 
+    applyPendingChanges(path);
+
+    final var virtualFile = path.findVirtualFile();
+    final var doc = virtualFile != null ? FileDocumentManager.getInstance().getCachedDocument(virtualFile) : null;
+    if (doc != null) {
+      PsiDocumentManager.getInstance(project).commitDocument(doc);
+    }
+  }
+
+  private boolean isUncommitted(@NotNull LspPath path) {
+    final var virtualFile = path.findVirtualFile();
+    final var doc = virtualFile != null ? FileDocumentManager.getInstance().getCachedDocument(virtualFile) : null;
+    return doc != null && PsiDocumentManager.getInstance(project).isUncommited(doc);
+  }
+
+  // must be called on EDT
+  private void applyPendingChanges(@NotNull LspPath path) {
+    final var contentChanges = pendingChanges.remove(path);
+    if (contentChanges != null) {
+      applyChanges(path, contentChanges);
+    }
+  }
+
+  // must be called on EDT
+  private void applyChanges(@NotNull LspPath path, @NotNull List<TextDocumentContentChangeEvent> contentChanges) {
     var file = MiscUtil.resolvePsiFile(project, path);
 
     if (file == null) {
@@ -117,8 +237,7 @@ final public class ManagedDocuments {
     }
 
     // all updates must go through CommandProcessor
-    ApplicationManager.getApplication().invokeAndWait(() -> CommandProcessor.getInstance().executeCommand(
-      project, MiscUtil.asWriteAction(() -> {
+    CommandProcessor.getInstance().executeCommand(project, MiscUtil.asWriteAction(() -> {
       var doc = MiscUtil.getDocument(file);
 
       if (doc == null) {
@@ -126,7 +245,7 @@ final public class ManagedDocuments {
         return;
       }
 
-        /*  todo make it configurable
+      /*  todo make it configurable
           if(managedTextDoc.contents != doc.text) {
             val change = Diff.buildChanges(managedTextDoc.contents, doc.text)
             LOG.error("Ground truth differed upon change! Old: \n${managedTextDoc.contents}\nNew: \n${doc.text}")
@@ -146,13 +265,8 @@ final public class ManagedDocuments {
         LOG.error("Error on documentChange", e);
       }
 
-      // Commit changes to the PSI tree, but not to disk
-      PsiDocumentManager.getInstance(project).commitDocument(doc);
-
-      // Update the ground truth
-      docs.put(path, textDocument);
-
-    }), "LSP: UpdateDocument", "", UndoConfirmationPolicy.REQUEST_CONFIRMATION));
+      // the PSI tree is committed lazily, by the first request which needs it (see commitDocument)
+    }), "LSP: UpdateDocument", "", UndoConfirmationPolicy.REQUEST_CONFIRMATION);
   }
 
   public void syncDocument(@NotNull TextDocumentIdentifier textDocument) {
@@ -168,35 +282,177 @@ final public class ManagedDocuments {
       return;
     }
 
-    ApplicationManager.getApplication().invokeAndWait(
-        MiscUtil.asWriteAction(() -> MiscUtil.invokeWithPsiFileInReadAction(project, path, (psi) -> {
-          var doc = MiscUtil.getDocument(psi);
-          if (doc == null)
-            return; // todo handle
-
-          VirtualFileManager.getInstance().syncRefresh();
-          FileDocumentManager.getInstance().reloadFromDisk(doc);
-          PsiDocumentManager.getInstance(project).commitAllDocuments();
-        })));
+    // saving doesn't change the text, so the version and the requests computed for it stay valid
+    final var saved = docs.get(path);
+
+    // only the saved file is refreshed; the document is reloaded unless it has been changed since the save
+    VfsRefresher.getInstance().refresh(path).thenRun(() -> ApplicationManager.getApplication().invokeLater(
+        () -> {
+          final List<TextDocumentContentChangeEvent> contentChanges;
+          final DocumentSnapshot current;
+          synchronized (changesLock) {
+            contentChanges = pendingChanges.remove(path);
+            current = docs.get(path);
+          }
+          if (current == null) {
+            return;
+          }
+          if (contentChanges != null) {
+            applyChanges(path, contentChanges);
+          }
+          // the refresh may have reloaded the document from disk under the buffered changes
+          reconcile(path, current);
+          if (current != saved) {
+            return;
+          }
+          MiscUtil.asWriteAction(() -> MiscUtil.invokeWithPsiFileInReadAction(project, path, (psi) -> {
+            var doc = MiscUtil.getDocument(psi);
+            if (doc == null)
+              return; // todo handle
+
+            FileDocumentManager.getInstance().reloadFromDisk(doc);
+            PsiDocumentManager.getInstance(project).commitDocument(doc);
+          })).run();
+        }, project.getDisposed()));
+  }
 
-    // drop stored version to bring it in sync with the client (if there was any mismatch)
-    docs.put(path, new VersionedTextDocumentIdentifier(uri, null));
+  /**
+   * Brings the document to the client's text if they differ; must be called on EDT after all the changes leading to
+   * the snapshot have been applied.
+   */
+  private void reconcile(@NotNull LspPath path, @NotNull DocumentSnapshot snapshot) {
+    final var virtualFile = path.findVirtualFile();
+    final var doc = virtualFile != null ? FileDocumentManager.getInstance().getCachedDocument(virtualFile) : null;
+    if (doc == null || !doc.isWritable() || snapshot.getText().contentEquals(doc.getImmutableCharSequence())) {
+      return;
+    }
+    LOG.warn("Document differs from the client's text, reconciling: " + path);
+    CommandProcessor.getInstance().executeCommand(project,
+        MiscUtil.asWriteAction(() -> TextUtil.replaceChangedRange(doc, snapshot.getText())),
+        "LSP: UpdateDocument", "", UndoConfirmationPolicy.REQUEST_CONFIRMATION);
   }
 
-  public void stopManaging(@NotNull TextDocumentIdentifier textDocument) {
+  /**
+   * Stops managing the document closed by the session unless other sessions still have it open.
+   *
+   * @return whether the document is no longer managed
+   */
+  public boolean stopManaging(@NotNull LspContext owner, @NotNull TextDocumentIdentifier textDocument) {
     String uri = textDocument.getUri();
     if (!canAccept(uri))
-      return;
+      return false;
 
-    var path = LspPath.fromLspUri(uri);
+    return stopManaging(owner, LspPath.fromLspUri(uri));
+  }
 
-    final var virtualFile = path.findVirtualFile();
-    if (virtualFile != null) {
-      FileDocumentManager.getInstance().reloadFiles();
+  /**
+   * Stops managing the documents of the session which leaves the project; the documents other sessions still have
+   * open stay managed.
+   *
+   * @return the documents which are no longer managed
+   */
+  @NotNull
+  public List<LspPath> stopManaging(@NotNull LspContext owner) {
+    final List<LspPath> owned;
+    synchronized (changesLock) {
+      owned = owners.entrySet().stream()
+          .filter(it -> it.getValue().containsKey(owner))
+          .map(Map.Entry::getKey)
+          .toList();
+    }
+    return owned.stream()
+        .filter(path -> stopManaging(owner, path))
+        .toList();
+  }
+
+  private boolean stopManaging(@NotNull LspContext owner, @NotNull LspPath path) {
+    synchronized (changesLock) {
+      final var owned = owners.get(path);
+      if (owned == null || owned.remove(owner) == null) {
+        LOG.warn("Attempted to close document without opening it at: " + path);
+        return false;
+      }
+      if (!owned.isEmpty()) {
+        LOG.debug("Document is still open in other sessions: " + path);
+        return false;
+      }
+      owners.remove(path);
+      pendingChanges.remove(path);
+      journals.remove(path);
+      lastChangedLines.remove(path);
+      visibleRanges.remove(path);
+      docs.remove(path);
     }
 
-    if (docs.remove(path) == null) {
-      LOG.warn("Attempted to close document without opening it at: " + path);
+    // drop unsaved changes unless the document has been opened again
+    VfsRefresher.getInstance().refresh(path).thenRun(() -> ApplicationManager.getApplication().invokeLater(
+        () -> {
+          final var virtualFile = path.findVirtualFile();
+          final var doc = virtualFile != null ? FileDocumentManager.getInstance().getCachedDocument(virtualFile) : null;
+          if (doc != null && !docs.containsKey(path)) {
+            FileDocumentManager.getInstance().reloadFiles(virtualFile);
+          }
+        }, project.getDisposed()));
+    return true;
+  }
+
+  /**
+   * @return the revision of the document, which changes with every change of its text made by any session;
+   * {@code null} if the document isn't managed
+   */
+  @Nullable
+  public Integer getVersion(@NotNull LspPath path) {
+    return Optional.ofNullable(docs.get(path)).map(DocumentSnapshot::getVersion).orElse(null);
+  }
+
+  /**
+   * @return the latest client's text of the document, which can be read on any thread without locks;
+   * {@code null} if the document isn't managed
+   */
+  @Nullable
+  public DocumentSnapshot getSnapshot(@NotNull LspPath path) {
+    return docs.get(path);
+  }
+
+  /**
+   * @return the journal of the edits applied to the document since it was opened; {@code null} if the document
+   * isn't managed
+   */
+  @Nullable
+  public EditJournal getEditJournal(@NotNull LspPath path) {
+    return journals.get(path);
+  }
+
+  /**
+   * @return the line where the document was changed last time; {@code 0} if it wasn't changed since opened
+   */
+  public int getLastChangedLine(@NotNull LspPath path) {
+    return lastChangedLines.getOrDefault(path, 0);
+  }
+
+  public void setVisibleRanges(@NotNull LspPath path, @NotNull List<Range> ranges) {
+    // the client may report the ranges of a document it hasn't opened for us, e.g. a decompiled class
+    if (docs.containsKey(path)) {
+      visibleRanges.put(path, List.copyOf(ranges));
+    }
+  }
+
+  /**
+   * @return the ranges of the document shown in the client's editors; empty if unknown
+   */
+  @NotNull
+  public List<Range> getVisibleRanges(@NotNull LspPath path) {
+    return visibleRanges.getOrDefault(path, List.of());
+  }
+
+  /**
+   * @return the sessions which have the document open
+   */
+  @NotNull
+  public List<@NotNull LspContext> getOwners(@NotNull LspPath path) {
+    synchronized (changesLock) {
+      final var owned = owners.get(path);
+      return owned != null ? List.copyOf(owned.keySet()) : List.of();
     }
   }
 
@@ -217,7 +473,7 @@ final public class ManagedDocuments {
     final var text = normalizeText(change.getText());
     if (change.getRange() == null) {
       // Change is the full insertText of the document
-      doc.setText(text);
+      TextUtil.replaceChangedRange(doc, text);
     } else {
       var textRange = TextUtil.toTextRange(doc, change.getRange());
 
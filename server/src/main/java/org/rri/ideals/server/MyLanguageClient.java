@@ -5,6 +5,9 @@ import org.eclipse.lsp4j.services.LanguageClient;
 
 /**
  * Extensions to the client-side LSP protocol for IDEA-specific features.
+ * <p>
+ * The notifications sent the other way, from the client to the server, are handled by {@link LspServer}:
+ * idea/visibleRanges tells which ranges of a document are shown in the client's editors.
  */
 public interface MyLanguageClient extends LanguageClient {
   /**
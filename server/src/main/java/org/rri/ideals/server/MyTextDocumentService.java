@@ -2,7 +2,7 @@ package org.rri.ideals.server;
 
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.DumbService;
-import com.intellij.util.concurrency.AppExecutorUtil;
+import com.intellij.openapi.project.Project;
 import org.eclipse.lsp4j.*;
 import org.eclipse.lsp4j.jsonrpc.CompletableFutures;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
@@ -11,12 +11,16 @@ import org.jetbrains.annotations.NotNull;
 import org.rri.ideals.server.codeactions.CodeActionService;
 import org.rri.ideals.server.completions.CompletionService;
 import org.rri.ideals.server.diagnostics.DiagnosticsService;
+import org.rri.ideals.server.diagnostics.WorkspaceDiagnosticsScanner;
 import org.rri.ideals.server.formatting.FormattingCommand;
 import org.rri.ideals.server.formatting.OnTypeFormattingCommand;
 import org.rri.ideals.server.references.*;
 import org.rri.ideals.server.rename.RenameCommand;
+import org.rri.ideals.server.scheduling.RequestPriority;
+import org.rri.ideals.server.scheduling.RequestScheduler;
 import org.rri.ideals.server.signature.SignatureHelpService;
 import org.rri.ideals.server.symbol.DocumentSymbolService;
+import org.rri.ideals.server.util.LargeFileMode;
 import org.rri.ideals.server.util.Metrics;
 
 import java.util.List;
@@ -38,13 +42,15 @@ public class MyTextDocumentService implements TextDocumentService {
 
     final var path = LspPath.fromLspUri(textDocument.getUri());
 
-    Metrics.run(() -> "didOpen: " + path, () -> {
-      documents().startManaging(textDocument);
-      diagnostics().launchDiagnostics(path);
+    session.runWhenReady(path, project -> Metrics.run(() -> "didOpen: " + path, () -> {
+      final var context = session.getContext(project);
+      documents(project).startManaging(context, textDocument);
+      project.getService(WorkspaceDiagnosticsScanner.class).documentOpened(path, context);
+      diagnostics(project).launchDiagnostics(path);
 
-      if (DumbService.isDumb(session.getProject())) {
+      if (DumbService.isDumb(project)) {
         LOG.debug("Sending indexing started: " + path);
-        LspContext.getContext(session.getProject()).getClient().notifyIndexStarted();
+        context.getClient().notifyIndexStarted();
       }
   /*  todo
         val projectSdk = ProjectRootManager.getInstance(project).projectSdk
@@ -52,180 +58,260 @@ public class MyTextDocumentService implements TextDocumentService {
           warnNoJdk(client)
         }
 */
-    });
+    }));
   }
 
   @Override
   public void didChange(DidChangeTextDocumentParams params) {
     final var path = LspPath.fromLspUri(params.getTextDocument().getUri());
 
-    Metrics.run(() -> "didChange: " + path, () -> {
-      documents().updateDocument(params);
-      diagnostics().launchDiagnostics(path);
-    });
+    session.runWhenReady(path, project -> Metrics.run(() -> "didChange: " + path, () -> {
+      documents(project).updateDocument(session.getContext(project), params);
+      diagnostics(project).documentChanged(path);
+      diagnostics(project).launchDiagnostics(path);
+    }));
   }
 
   @Override
   public void didClose(DidCloseTextDocumentParams params) {
-    diagnostics().haltDiagnostics(LspPath.fromLspUri(params.getTextDocument().getUri()));
-    documents().stopManaging(params.getTextDocument());
+    final var path = LspPath.fromLspUri(params.getTextDocument().getUri());
+    session.runWhenReady(path, project -> {
+      // the document may still be open in other sessions sharing the project
+      if (documents(project).stopManaging(session.getContext(project), params.getTextDocument())) {
+        diagnostics(project).haltDiagnostics(path);
+      }
+    });
   }
 
   @Override
   public void didSave(DidSaveTextDocumentParams params) {
-    documents().syncDocument(params.getTextDocument());
-    diagnostics().launchDiagnostics(LspPath.fromLspUri(params.getTextDocument().getUri()));
+    final var path = LspPath.fromLspUri(params.getTextDocument().getUri());
+    session.runWhenReady(path, project -> {
+      documents(project).syncDocument(params.getTextDocument());
+      diagnostics(project).launchDiagnostics(path);
+      // the saved changes may have broken the files nobody has open
+      project.getService(WorkspaceDiagnosticsScanner.class).fileSaved(path);
+    });
+  }
+
+  public void visibleRanges(@NotNull VisibleRangesParams params) {
+    final var path = LspPath.fromLspUri(params.getUri());
+    session.runWhenReady(path, project -> {
+      documents(project).setVisibleRanges(path, params.getRanges());
+      // only the visible part of a large document is analyzed, so scrolling brings new problems into view
+      final var snapshot = documents(project).getSnapshot(path);
+      if (snapshot != null && LargeFileMode.isLargeFile(snapshot.getText().length())) {
+        diagnostics(project).launchDiagnostics(path);
+      }
+    });
   }
 
   @Override
   public CompletableFuture<Either<List<? extends Location>, List<? extends LocationLink>>> definition(DefinitionParams params) {
-    return new FindDefinitionCommand(params.getPosition())
-        .runAsync(session.getProject(), LspPath.fromLspUri(params.getTextDocument().getUri()));
+    final var path = LspPath.fromLspUri(params.getTextDocument().getUri());
+    return withProject(path, project -> new FindDefinitionCommand(params.getPosition())
+        .runAsync(project, path));
   }
 
   @Override
   public CompletableFuture<Either<List<? extends Location>, List<? extends LocationLink>>> typeDefinition(TypeDefinitionParams params) {
-    return new FindTypeDefinitionCommand(params.getPosition())
-        .runAsync(session.getProject(), LspPath.fromLspUri(params.getTextDocument().getUri()));
+    final var path = LspPath.fromLspUri(params.getTextDocument().getUri());
+    return withProject(path, project -> new FindTypeDefinitionCommand(params.getPosition())
+        .runAsync(project, path));
   }
 
   @Override
   public CompletableFuture<Either<List<? extends Location>, List<? extends LocationLink>>> implementation(ImplementationParams params) {
-    return new FindImplementationCommand(params.getPosition())
-        .runAsync(session.getProject(), LspPath.fromLspUri(params.getTextDocument().getUri()));
+    final var path = LspPath.fromLspUri(params.getTextDocument().getUri());
+    return withProject(path, project -> new FindImplementationCommand(params.getPosition())
+        .runAsync(project, path));
   }
 
   @Override
   public CompletableFuture<List<? extends Location>> references(ReferenceParams params) {
-    return new FindUsagesCommand(params.getPosition())
-        .runAsync(session.getProject(), LspPath.fromLspUri(params.getTextDocument().getUri()));
+    final var path = LspPath.fromLspUri(params.getTextDocument().getUri());
+    return withProject(path, project -> new FindUsagesCommand(params.getPosition())
+        .runAsync(project, path));
   }
 
   @Override
   public CompletableFuture<List<? extends DocumentHighlight>> documentHighlight(DocumentHighlightParams params) {
-    return new DocumentHighlightCommand(params.getPosition())
-        .runAsync(session.getProject(), LspPath.fromLspUri(params.getTextDocument().getUri()));
+    final var path = LspPath.fromLspUri(params.getTextDocument().getUri());
+    return withProject(path, project -> new DocumentHighlightCommand(params.getPosition())
+        .runAsync(project, path));
   }
 
   @SuppressWarnings("deprecation")
   @Override
   public CompletableFuture<List<Either<SymbolInformation, DocumentSymbol>>> documentSymbol(DocumentSymbolParams params) {
     final var path = LspPath.fromLspUri(params.getTextDocument().getUri());
-    return CompletableFutures.computeAsync(
-        AppExecutorUtil.getAppExecutorService(),
+    return withProject(path, project -> CompletableFutures.computeAsync(
+        RequestScheduler.getInstance().executor(RequestPriority.NORMAL),
         (cancelChecker) ->
-            documentSymbols().computeDocumentSymbols(path, cancelChecker)
-    );
+            documentSymbols(project).computeDocumentSymbols(path, cancelChecker)
+    ));
   }
 
   @Override
   public CompletableFuture<List<Either<Command, CodeAction>>> codeAction(CodeActionParams params) {
-    return CompletableFuture.completedFuture(
-        codeActions().getCodeActions(
-            LspPath.fromLspUri(params.getTextDocument().getUri()),
+    final var path = LspPath.fromLspUri(params.getTextDocument().getUri());
+    return withProject(path, project -> CompletableFuture.completedFuture(
+        codeActions(project).getCodeActions(
+            path,
             params.getRange()
         ).stream().map((Function<CodeAction, Either<Command, CodeAction>>) Either::forRight).collect(Collectors.toList())
-    );
+    ));
   }
 
 
   @Override
   public CompletableFuture<CodeAction> resolveCodeAction(CodeAction unresolved) {
-    return CompletableFuture.supplyAsync(() -> {
-      var edit = codeActions().applyCodeAction(unresolved);
+    return withProject(CodeActionService.getActionPath(unresolved), project -> CompletableFuture.supplyAsync(() -> {
+      var edit = codeActions(project).applyCodeAction(unresolved);
       unresolved.setEdit(edit);
       return unresolved;
-    });
+    }, RequestScheduler.getInstance().executor(RequestPriority.NORMAL)));
   }
 
-  public void refreshDiagnostics() {
-    LOG.info("Start refreshing diagnostics for all opened documents");
-    documents().forEach(diagnostics()::launchDiagnostics);
+  @Override
+  public CompletableFuture<DocumentDiagnosticReport> diagnostic(DocumentDiagnosticParams params) {
+    final var path = LspPath.fromLspUri(params.getTextDocument().getUri());
+    return withProject(path, project -> CompletableFutures.computeAsync(
+        RequestScheduler.getInstance().executor(RequestPriority.NORMAL),
+        (cancelChecker) ->
+            diagnostics(project).pullDiagnostics(path, params.getPreviousResultId(), cancelChecker)
+    ));
+  }
+
+  public void refreshDiagnostics(@NotNull Project project) {
+    LOG.info("Start refreshing diagnostics for all opened documents: " + project);
+    project.getService(DiagnosticsService.class).refreshDiagnostics();
   }
 
+  /**
+   * Starts the request when the project of the path is ready without blocking the message thread.
+   * A request cancelled while waiting for the project isn't started, the later cancellation is passed on.
+   */
   @NotNull
-  private ManagedDocuments documents() {
-    return session.getProject().getService(ManagedDocuments.class);
+  private <T> CompletableFuture<T> withProject(@NotNull LspPath path,
+                                               @NotNull Function<@NotNull Project, @NotNull CompletableFuture<T>> request) {
+    final var project = session.getProjectAsync(path);
+    if (project.isDone() && !project.isCompletedExceptionally()) {
+      return request.apply(project.join());
+    }
+
+    final var result = new CompletableFuture<T>();
+    project.whenComplete((resolved, error) -> {
+      if (error != null) {
+        result.completeExceptionally(error);
+        return;
+      }
+      if (result.isDone()) {
+        return;
+      }
+      final var computation = request.apply(resolved);
+      result.whenComplete((ignored1, ignored2) -> {
+        if (result.isCancelled()) {
+          computation.cancel(true);
+        }
+      });
+      computation.whenComplete((value, failure) -> {
+        if (failure != null) {
+          result.completeExceptionally(failure);
+        } else {
+          result.complete(value);
+        }
+      });
+    });
+    return result;
+  }
+
+  @NotNull
+  private ManagedDocuments documents(@NotNull Project project) {
+    return project.getService(ManagedDocuments.class);
   }
 
   @NotNull
-  private DiagnosticsService diagnostics() {
-    return session.getProject().getService(DiagnosticsService.class);
+  private DiagnosticsService diagnostics(@NotNull Project project) {
+    return project.getService(DiagnosticsService.class);
   }
 
   @NotNull
-  private CodeActionService codeActions() {
-    return session.getProject().getService(CodeActionService.class);
+  private CodeActionService codeActions(@NotNull Project project) {
+    return project.getService(CodeActionService.class);
   }
 
   @NotNull
-  private CompletionService completions() {
-    return session.getProject().getService(CompletionService.class);
+  private CompletionService completions(@NotNull Project project) {
+    return project.getService(CompletionService.class);
   }
 
   @NotNull
-  private DocumentSymbolService documentSymbols() {
-    return session.getProject().getService(DocumentSymbolService.class);
+  private DocumentSymbolService documentSymbols(@NotNull Project project) {
+    return project.getService(DocumentSymbolService.class);
   }
 
   @NotNull
-  private SignatureHelpService signature() {
-    return session.getProject().getService(SignatureHelpService.class);
+  private SignatureHelpService signature(@NotNull Project project) {
+    return project.getService(SignatureHelpService.class);
   }
 
   @Override
   @NotNull
   public CompletableFuture<CompletionItem> resolveCompletionItem(@NotNull CompletionItem unresolved) {
-    return CompletableFutures.computeAsync(
-        AppExecutorUtil.getAppExecutorService(),
+    // the item is resolved by the project of the document it was computed for
+    return withProject(CompletionService.getItemPath(unresolved), project -> CompletableFutures.computeAsync(
+        RequestScheduler.getInstance().executor(RequestPriority.INTERACTIVE),
         (cancelChecker) ->
-            completions().resolveCompletion(unresolved, cancelChecker)
-    );
+            completions(project).resolveCompletion(unresolved, cancelChecker)
+    ));
   }
 
   @Override
   @NotNull
   public CompletableFuture<Either<List<CompletionItem>, CompletionList>> completion(@NotNull CompletionParams params) {
     final var path = LspPath.fromLspUri(params.getTextDocument().getUri());
-    return CompletableFutures.computeAsync(
-        AppExecutorUtil.getAppExecutorService(),
+    return withProject(path, project -> CompletableFutures.computeAsync(
+        RequestScheduler.getInstance().executor(RequestPriority.INTERACTIVE),
         (cancelChecker) ->
-            Either.forLeft(completions().computeCompletions(path, params.getPosition(), cancelChecker))
-    );
+            Either.forLeft(completions(project).computeCompletions(path, params.getPosition(), cancelChecker))
+    ));
   }
 
   @Override
   @NotNull
   public CompletableFuture<SignatureHelp> signatureHelp(SignatureHelpParams params) {
     final var path = LspPath.fromLspUri(params.getTextDocument().getUri());
-    return CompletableFutures.computeAsync(AppExecutorUtil.getAppExecutorService(),
-        cancelChecker -> signature().computeSignatureHelp(path, params.getPosition(), cancelChecker));
+    return withProject(path, project -> CompletableFutures.computeAsync(RequestScheduler.getInstance().executor(RequestPriority.INTERACTIVE),
+        cancelChecker -> signature(project).computeSignatureHelp(path, params.getPosition(), cancelChecker)));
   }
 
 
   @Override
   public CompletableFuture<List<? extends TextEdit>> formatting(@NotNull DocumentFormattingParams params) {
-    return new FormattingCommand(null, params.getOptions())
-        .runAsync(session.getProject(), LspPath.fromLspUri(params.getTextDocument().getUri()));
+    final var path = LspPath.fromLspUri(params.getTextDocument().getUri());
+    return withProject(path, project -> new FormattingCommand(null, params.getOptions())
+        .runAsync(project, path));
   }
 
   @Override
   public CompletableFuture<List<? extends TextEdit>> rangeFormatting(@NotNull DocumentRangeFormattingParams params) {
-    return new FormattingCommand(params.getRange(), params.getOptions())
-        .runAsync(session.getProject(), LspPath.fromLspUri(params.getTextDocument().getUri()));
+    final var path = LspPath.fromLspUri(params.getTextDocument().getUri());
+    return withProject(path, project -> new FormattingCommand(params.getRange(), params.getOptions())
+        .runAsync(project, path));
   }
 
   @Override
   public CompletableFuture<List<? extends TextEdit>> onTypeFormatting(DocumentOnTypeFormattingParams params) {
-    return new OnTypeFormattingCommand(params.getPosition(), params.getOptions(),
-        params.getCh().charAt(0)).runAsync(
-        session.getProject(), LspPath.fromLspUri(params.getTextDocument().getUri())
-    );
+    final var path = LspPath.fromLspUri(params.getTextDocument().getUri());
+    return withProject(path, project -> new OnTypeFormattingCommand(params.getPosition(), params.getOptions(),
+        params.getCh().charAt(0)).runAsync(project, path));
   }
 
   @Override
   public CompletableFuture<WorkspaceEdit> rename(RenameParams params) {
-    return new RenameCommand(params.getPosition(), params.getNewName())
-        .runAsync(session.getProject(), LspPath.fromLspUri(params.getTextDocument().getUri()));
+    final var path = LspPath.fromLspUri(params.getTextDocument().getUri());
+    return withProject(path, project -> new RenameCommand(params.getPosition(), params.getNewName())
+        .runAsync(project, path));
   }
 }
@@ -1,15 +1,20 @@
 package org.rri.ideals.server;
 
-import com.intellij.openapi.application.ApplicationManager;
-import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.util.PsiModificationTracker;
 import org.eclipse.lsp4j.*;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.eclipse.lsp4j.services.WorkspaceService;
 import org.jetbrains.annotations.NotNull;
+import org.rri.ideals.server.diagnostics.DiagnosticsService;
 import org.rri.ideals.server.symbol.WorkspaceSymbolService;
+import org.rri.ideals.server.vfs.VfsRefresher;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 public class MyWorkspaceService implements WorkspaceService {
   @NotNull
@@ -24,9 +29,41 @@ public class MyWorkspaceService implements WorkspaceService {
 
   }
 
+  /**
+   * Refreshes the reported files in one batch (see {@link VfsRefresher}) and relaunches diagnostics of the open
+   * documents of the projects whose PSI has been changed by the refresh.
+   */
   @Override
   public void didChangeWatchedFiles(DidChangeWatchedFilesParams params) {
+    // the projects may be still opening, the message thread mustn't wait for them
+    session.getProjectsAsync().thenAccept(projects -> refreshWatchedFiles(projects, params.getChanges()));
+  }
+
+  private static void refreshWatchedFiles(@NotNull List<@NotNull Project> projects, @NotNull List<FileEvent> changes) {
+    final var paths = changes.stream()
+        .map(event -> LspPath.fromLspUri(event.getUri()))
+        // the open documents are owned by the client and synchronized by didChange and didSave
+        .filter(path -> projects.stream().noneMatch(project -> project.getService(ManagedDocuments.class).getSnapshot(path) != null))
+        .toList();
+    if (paths.isEmpty()) {
+      return;
+    }
+
+    final var modificationCounts = new HashMap<Project, Long>();
+    projects.forEach(project -> modificationCounts.put(project, PsiModificationTracker.getInstance(project).getModificationCount()));
 
+    VfsRefresher.getInstance().refresh(paths).thenRun(() -> modificationCounts.forEach((project, count) -> {
+      if (!project.isDisposed() && PsiModificationTracker.getInstance(project).getModificationCount() != count) {
+        relaunchDiagnostics(project);
+      }
+    }));
+  }
+
+  @Override
+  public void didChangeWorkspaceFolders(DidChangeWorkspaceFoldersParams params) {
+    final var event = params.getEvent();
+    event.getRemoved().forEach(folder -> session.removeWorkspaceFolder(LspPath.fromLspUri(folder.getUri())));
+    event.getAdded().forEach(folder -> session.addWorkspaceFolder(LspPath.fromLspUri(folder.getUri())));
   }
 
   @Override
@@ -38,16 +75,46 @@ public class MyWorkspaceService implements WorkspaceService {
     //  because the order of and delays between calls didClose/didOpen/didRenameFiles
     //  during file rename seems client-specific
     //  so VFS refresh may happen too late and thus have no effect
-    ApplicationManager.getApplication().invokeAndWait(() -> VirtualFileManager.getInstance().syncRefresh());
+    VfsRefresher.getInstance().refresh(params.getFiles().stream()
+        .flatMap(file -> Stream.of(file.getOldUri(), file.getNewUri()))
+        .map(LspPath::fromLspUri)
+        .toList()
+    ).thenCompose(ignored -> session.getProjectsAsync())
+        .thenAccept(projects -> projects.forEach(MyWorkspaceService::relaunchDiagnostics));
   }
 
-  private @NotNull WorkspaceSymbolService workspaceSymbol() {
-    return session.getProject().getService(WorkspaceSymbolService.class);
+  // the diagnostics computed before the refresh may refer to the files which have been changed or don't exist anymore
+  private static void relaunchDiagnostics(@NotNull Project project) {
+    project.getService(DiagnosticsService.class).refreshDiagnostics();
   }
 
   @SuppressWarnings("deprecation")
   @Override
   public CompletableFuture<Either<List<? extends SymbolInformation>, List<? extends WorkspaceSymbol>>> symbol(WorkspaceSymbolParams params) {
-    return workspaceSymbol().runSearch(params.getQuery());
+    return session.getProjectsAsync().thenCompose(projects -> searchSymbols(projects, params.getQuery()));
+  }
+
+  @SuppressWarnings("deprecation")
+  @NotNull
+  private static CompletableFuture<Either<List<? extends SymbolInformation>, List<? extends WorkspaceSymbol>>> searchSymbols(
+      @NotNull List<@NotNull Project> projects, @NotNull String query) {
+    final var searches = projects.stream()
+        .map(project -> project.getService(WorkspaceSymbolService.class).runSearch(query))
+        .toList();
+
+    if (searches.size() == 1) {
+      return searches.get(0);
+    }
+
+    // results of the projects are concatenated; null means the search isn't available (e.g. in dumb mode)
+    return CompletableFuture.allOf(searches.toArray(CompletableFuture[]::new))
+        .thenApply(ignored -> {
+          // all the searches are completed here
+          final var symbols = searches.stream()
+              .map(it -> it.getNow(null).getRight())
+              .filter(Objects::nonNull)
+              .toList();
+          return Either.forRight(symbols.isEmpty() ? null : symbols.stream().<WorkspaceSymbol>flatMap(List::stream).toList());
+        });
   }
 }
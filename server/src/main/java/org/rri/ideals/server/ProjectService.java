@@ -4,91 +4,143 @@ import com.intellij.ide.impl.OpenProjectTask;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.project.ProjectManagerListener;
 import com.intellij.openapi.project.ex.ProjectManagerEx;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Objects;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the pool of projects opened by the LSP server.
+ * <p>
+ * Sessions working with the same root share one opened project. Each call of
+ * {@link #resolveProjectFromRoot(LspPath)} acquires a reference to the project,
+ * each call of {@link #closeProject(Project)} releases it. The project is closed only
+ * when the last reference is released.
+ */
 public class ProjectService {
   private final static Logger LOG = Logger.getInstance(ProjectService.class);
 
-  private final Map<LspPath, String> projectHashes = new HashMap<>();
+  private final ConcurrentHashMap<LspPath, SharedProject> projects = new ConcurrentHashMap<>();
 
   @NotNull
   public static ProjectService getInstance() {
     return ApplicationManager.getApplication().getService(ProjectService.class);
   }
 
+  /**
+   * Acquires a reference to the project opened for the given root, opening it if necessary.
+   * <p>
+   * The project is opened in background. The returned future is completed when the project
+   * is initialized; if the project couldn't be opened it is completed exceptionally and
+   * the reference is dropped.
+   */
   @NotNull
-  public Project resolveProjectFromRoot(@NotNull LspPath root) {
+  public CompletableFuture<@NotNull Project> resolveProjectFromRoot(@NotNull LspPath root) {
     // TODO: in-memory virtual files for testing have temp:/// prefix, figure out how to resolve the document from them
     // otherwise it gets confusing to have to look up the line and column being tested in the test document
 
     if (!Files.isDirectory(root.toPath())) {
-      throw new IllegalArgumentException("Isn't a directory: " + root);
+      return CompletableFuture.failedFuture(new IllegalArgumentException("Isn't a directory: " + root));
     }
 
-    return ensureProject(root);
-  }
-
-  public void closeProject(@NotNull Project project) {
-    if (projectHashes.values().remove(project.getLocationHash())) {
-      LOG.info("Closing project: " + project);
-      var closed = new boolean[]{false};
-      ApplicationManager.getApplication().invokeAndWait(() -> closed[0] = ProjectManagerEx.getInstanceEx().forceCloseProject(project));
-      if(!closed[0]) {
-        LOG.warn("Closing project: Project wasn't closed: " + project);
+    while (true) {
+      final var shared = projects.computeIfAbsent(root, SharedProject::new);
+      synchronized (shared) {
+        // the entry could have been released and removed while we were waiting for the lock
+        if (projects.get(root) != shared) {
+          continue;
+        }
+
+        final var opening = shared.opening;
+        final var opened = shared.getProjectNow();
+        if (opening == null || opening.isCompletedExceptionally() || (opened != null && opened.isDisposed())) {
+          if (opened != null) {
+            LOG.info("Cached project was disposed, reopening: " + root);
+          }
+          shared.refCount = 0;
+          shared.opening = openProject(shared);
+        }
+
+        shared.refCount++;
+        LOG.info("Project acquired (" + shared.refCount + " session(s)): " + root);
+        // a copy, so that a session can't complete or cancel the future shared with the other sessions
+        return shared.opening.copy();
       }
-    } else {
-      LOG.warn("Closing project: Project wasn't opened by LSP server; do nothing: " + project);
     }
   }
 
-  @NotNull
-  private Project ensureProject(@NotNull LspPath projectPath) {
-    var project = getProject(projectPath);
-    if (project == null)
-      throw new IllegalArgumentException("Couldn't find document at " + projectPath);
-    if (project.isDisposed())
-      throw new IllegalArgumentException("Project was already disposed: " + project);
-
-    return project;
-  }
+  public void closeProject(@NotNull Project project) {
+    final var shared = projects.values().stream()
+        .filter(it -> it.getProjectNow() == project)
+        .findFirst()
+        .orElse(null);
 
-  @Nullable
-  private Project getProject(@NotNull LspPath projectPath) {
+    if (shared == null) {
+      LOG.warn("Closing project: Project wasn't opened by LSP server; do nothing: " + project);
+      return;
+    }
 
-    final var mgr = ProjectManagerEx.getInstanceEx();
+    synchronized (shared) {
+      if (shared.getProjectNow() != project || shared.refCount == 0) {
+        LOG.warn("Closing project: Project has already been released; do nothing: " + project);
+        return;
+      }
 
-    final var projectHash = projectHashes.get(projectPath);
-    if (projectHash != null) {
-      Project project = mgr.findOpenProjectByHash(projectHash);
-      if (project != null && !project.isDisposed()) {
-        return project;
-      } else {
-        LOG.info("Cached document was disposed, reopening: " + projectPath);
+      if (--shared.refCount > 0) {
+        LOG.info("Project released, still used by " + shared.refCount + " session(s): " + project);
+        return;
       }
-    }
 
-    if (!Files.exists(projectPath.toPath())) {  // todo VirtualFile?
-      LOG.warn("Project path doesn't exist: " + projectPath);
-      return null;
+      projects.remove(shared.root, shared);
+      shared.opening = null;
     }
 
-    var project = findOrLoadProject(projectPath, mgr);
-
-    if (project != null) {
-      waitUntilInitialized(project);
-      cacheProject(projectPath, project);
+    LOG.info("Closing project: " + project);
+    var closed = new boolean[]{false};
+    ApplicationManager.getApplication().invokeAndWait(() -> closed[0] = ProjectManagerEx.getInstanceEx().forceCloseProject(project));
+    if(!closed[0]) {
+      LOG.warn("Closing project: Project wasn't closed: " + project);
     }
+  }
 
-    return project;
+  @NotNull
+  private CompletableFuture<@NotNull Project> openProject(@NotNull SharedProject shared) {
+    final var projectPath = shared.root;
+    final var opening = CompletableFuture
+        .supplyAsync(() -> findOrLoadProject(projectPath, ProjectManagerEx.getInstanceEx()),
+            AppExecutorUtil.getAppExecutorService())
+        .thenCompose(project -> {
+          if (project == null)
+            throw new IllegalArgumentException("Couldn't open project at " + projectPath);
+          return whenInitialized(project);
+        });
+
+    opening.whenComplete((project, error) -> {
+      if (error != null) {
+        LOG.warn("Couldn't open project: " + projectPath, error);
+        synchronized (shared) {
+          // sessions waiting for this project get the error and don't release their references
+          if (shared.opening == opening) {
+            shared.opening = null;
+            shared.refCount = 0;
+            projects.remove(projectPath, shared);
+          }
+        }
+      } else {
+        LOG.info("Caching project: " + projectPath);
+      }
+    });
+
+    return opening;
   }
 
   @SuppressWarnings("UnstableApiUsage")
@@ -102,22 +154,60 @@ public class ProjectService {
 
   }
 
-  private void waitUntilInitialized(@NotNull Project project) {
-    try {
-      // Wait until the project is initialized to prevent invokeAndWait hangs
-      // todo avoid
-      while (!project.isInitialized()) {
-        //noinspection BusyWait
-        Thread.sleep(100);
+  /**
+   * Completes when the project is initialized. Waiting for it prevents invokeAndWait hangs
+   * in the code working with a partially opened project.
+   */
+  @NotNull
+  private static CompletableFuture<@NotNull Project> whenInitialized(@NotNull Project project) {
+    final var result = new CompletableFuture<Project>();
+    final var connection = ApplicationManager.getApplication().getMessageBus().connect();
+    connection.subscribe(ProjectManager.TOPIC, new ProjectManagerListener() {
+      @SuppressWarnings("deprecation")
+      @Override
+      public void projectOpened(@NotNull Project opened) {
+        if (opened == project) {
+          result.complete(project);
+        }
+      }
+
+      @Override
+      public void projectClosed(@NotNull Project closed) {
+        if (closed == project) {
+          result.completeExceptionally(new IllegalStateException("Project was closed while opening: " + project));
+        }
       }
-    } catch (InterruptedException e) {
-      LOG.warn("Interrupted while waiting for project to be initialized: " + project.getBasePath(), e);
-      throw new RuntimeException(e);
+    });
+
+    // the project could have been initialized before we subscribed
+    if (project.isInitialized()) {
+      result.complete(project);
+    } else if (project.isDisposed()) {
+      result.completeExceptionally(new IllegalArgumentException("Project was already disposed: " + project));
     }
+
+    return result.whenComplete((ignored, error) -> connection.disconnect());
   }
 
-  private void cacheProject(@NotNull LspPath projectPath, Project project) {
-    LOG.info("Caching project: " + projectPath);
-    projectHashes.put(projectPath, project.getLocationHash());
+  /**
+   * A project opened for the given root together with the number of sessions using it.
+   * Modifications are guarded by the instance monitor.
+   */
+  private static final class SharedProject {
+    @NotNull
+    private final LspPath root;
+    @Nullable
+    private volatile CompletableFuture<@NotNull Project> opening;
+    private int refCount;
+
+    private SharedProject(@NotNull LspPath root) {
+      this.root = root;
+    }
+
+    @Nullable
+    private Project getProjectNow() {
+      final var future = opening;
+      return future != null && future.isDone() && !future.isCompletedExceptionally() ? future.getNow(null) : null;
+    }
   }
 }
@@ -0,0 +1,45 @@
+package org.rri.ideals.server;
+
+import org.eclipse.lsp4j.Range;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The parameters of the idea/visibleRanges notification: the ranges of the document shown in the client's editors.
+ */
+public class VisibleRangesParams {
+  @NotNull
+  private String uri;
+
+  @NotNull
+  private List<Range> ranges;
+
+  public VisibleRangesParams() {
+    this("", new ArrayList<>());
+  }
+
+  public VisibleRangesParams(@NotNull String uri, @NotNull List<Range> ranges) {
+    this.uri = uri;
+    this.ranges = ranges;
+  }
+
+  @NotNull
+  public String getUri() {
+    return uri;
+  }
+
+  public void setUri(@NotNull String uri) {
+    this.uri = uri;
+  }
+
+  @NotNull
+  public List<Range> getRanges() {
+    return ranges;
+  }
+
+  public void setRanges(@NotNull List<Range> ranges) {
+    this.ranges = ranges;
+  }
+}
@@ -9,13 +9,13 @@ import org.eclipse.lsp4j.jsonrpc.MessageConsumer;
 import org.jetbrains.annotations.NotNull;
 import org.rri.ideals.server.LspServer;
 import org.rri.ideals.server.MyLanguageClient;
-import org.rri.ideals.server.util.MiscUtil;
+import org.rri.ideals.server.util.Metrics;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Function;
 
 public abstract class LspServerRunnerBase {
@@ -32,10 +32,15 @@ public abstract class LspServerRunnerBase {
 
   protected abstract void prepareForListening();
 
-  protected record Connection(@NotNull InputStream input, @NotNull OutputStream output) {}
-
-  private ExecutorService createServerThreads() {
-    return Executors.newCachedThreadPool();
+  protected record Connection(@NotNull InputStream input, @NotNull OutputStream output) {
+    void close() {
+      try {
+        input.close();
+        output.close();
+      } catch (IOException e) {
+        LOG.warn("Error closing connection: " + e);
+      }
+    }
   }
 
   public CompletableFuture<Void> launch() {
@@ -48,7 +53,16 @@ public abstract class LspServerRunnerBase {
     }
     return CompletableFuture.runAsync(() -> {
       while (true) {
-        var serverFuture = connectServer(waitForConnection());
+        // backpressure: a client that can't be served yet waits for the connection to be accepted
+        MessageDispatchExecutor.acquireSlot();
+        final Connection connection;
+        try {
+          connection = waitForConnection();
+        } catch (RuntimeException e) {
+          MessageDispatchExecutor.releaseSlot();
+          throw e;
+        }
+        var serverFuture = connectServer(connection);
         if (!isMultiConnection) {
           serverFuture.join();
           break;
@@ -61,15 +75,26 @@ public abstract class LspServerRunnerBase {
     Function<MessageConsumer, MessageConsumer> wrapper = consumer -> consumer;
 
     var languageServer = new LspServer();
+    // completed by the dispatch thread when the message loop ends, no thread is blocked waiting for it
+    var listening = new CompletableFuture<Void>();
     var launcher = Launcher.createIoLauncher(
         languageServer, MyLanguageClient.class,
-        connection.input, connection.output, createServerThreads(), wrapper
+        connection.input, connection.output, MessageDispatchExecutor.forConnection(listening), wrapper
     );
     var client = launcher.getRemoteProxy();
     languageServer.connect(client);
     LOG.info("Listening for commands.");
-    return CompletableFuture
-        .runAsync(MiscUtil.asRunnable(() -> launcher.startListening().get()), AppExecutorUtil.getAppExecutorService())
-        .whenComplete((ignored1, ignored2) -> languageServer.stop());
+    Metrics.logGauges();
+    try {
+      launcher.startListening();
+    } catch (RejectedExecutionException e) {
+      LOG.warn("Connection refused: " + e.getMessage());
+      connection.close();
+    }
+    return listening
+        .whenComplete((ignored1, ignored2) -> {
+          languageServer.stop();
+          Metrics.logGauges();
+        });
   }
 }
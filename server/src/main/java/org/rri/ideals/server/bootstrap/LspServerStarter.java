@@ -4,12 +4,16 @@ import com.intellij.ide.CliResult;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.application.ApplicationStarter;
 import org.jetbrains.annotations.NotNull;
+import org.rri.ideals.server.LspPath;
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Future;
 
 
 public class LspServerStarter implements ApplicationStarter {
+  private static final String PRELOAD_OPTION = "--preload";
 
   public LspServerStarter() {
   }
@@ -28,13 +32,34 @@ public class LspServerStarter implements ApplicationStarter {
 
   @NotNull
   public String getUsageMessage() {
-    return "Run \"idea lsp-server\"";
+    return "Run \"idea lsp-server [stdio | tcp [<port>] | unix [<socket path>]] [--preload <project root>]...\"";
   }
 
   public boolean canProcessExternalCommandLine() {
     return false;
   }
 
+  /**
+   * Splits the options ({@code --preload <project root>}, may be repeated) out of the positional arguments.
+   *
+   * @return the project roots to open before accepting connections
+   */
+  @NotNull
+  private static List<LspPath> extractPreloadedRoots(@NotNull List<String> args, @NotNull List<String> positionalArgs) {
+    final var roots = new ArrayList<LspPath>();
+    for (int i = 0; i < args.size(); i++) {
+      if (args.get(i).equals(PRELOAD_OPTION)) {
+        if (++i == args.size()) {
+          throw new IllegalArgumentException("Project root expected after " + PRELOAD_OPTION);
+        }
+        roots.add(LspPath.fromLocalPath(Paths.get(args.get(i)).toAbsolutePath()));
+      } else {
+        positionalArgs.add(args.get(i));
+      }
+    }
+    return roots;
+  }
+
   @NotNull
   private static LspServerRunnerBase buildRunner(@NotNull List<String> args) {
     assert args.size() >= 1 : "insufficient arguments";
@@ -51,6 +76,16 @@ public class LspServerStarter implements ApplicationStarter {
 
         return runner;
       }
+
+      if (transportType.equals("unix")) {
+        var runner = new UnixSocketLspServerRunner();
+
+        if (args.size() > 2) {
+          runner.setSocketPath(Paths.get(args.get(2)));
+        }
+
+        return runner;
+      }
     }
 
     return new StdioLspServerRunner();
@@ -67,7 +102,14 @@ public class LspServerStarter implements ApplicationStarter {
     try {
       int exitCode;
       try {
-        Future<CliResult> commandFuture = buildRunner(args)
+        final var positionalArgs = new ArrayList<String>();
+        final var preloadedRoots = extractPreloadedRoots(args, positionalArgs);
+        final var runner = buildRunner(positionalArgs);
+
+        // connections are refused until the preloaded projects are ready
+        ProjectPreloader.preload(preloadedRoots);
+
+        Future<CliResult> commandFuture = runner
             .launch()
             .thenApply(unused -> new CliResult(0, "LSP Server done"));
         CliResult result = commandFuture.get();
@@ -0,0 +1,148 @@
+package org.rri.ideals.server.bootstrap;
+
+import com.intellij.util.ConcurrencyUtil;
+import org.jetbrains.annotations.NotNull;
+import org.rri.ideals.server.util.Metrics;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor handed to lsp4j for JSON-RPC message dispatching.
+ * <p>
+ * lsp4j occupies one thread of it per connection for the whole lifetime of the connection
+ * (reading, parsing and dispatching incoming messages), so the pool is shared by all
+ * the connections and its size limits the number of simultaneously served sessions.
+ * Connections exceeding the limit wait in a bounded queue. The server doesn't accept a connection
+ * until there is room for it (see {@link #acquireSlot()}), so extra clients wait in the socket backlog
+ * instead of being dropped.
+ * <p>
+ * Configured by system properties:
+ * <ul>
+ *   <li>{@code ideals.dispatch.threads} &mdash; max number of simultaneously served connections</li>
+ *   <li>{@code ideals.dispatch.queue} &mdash; max number of connections waiting for a free thread</li>
+ * </ul>
+ */
+final class MessageDispatchExecutor {
+  private static final int THREADS = Integer.getInteger("ideals.dispatch.threads", 16);
+  private static final int QUEUE_CAPACITY = Integer.getInteger("ideals.dispatch.queue", 4);
+
+  private static final AtomicLong REJECTED = new AtomicLong();
+  private static final Semaphore SLOTS = new Semaphore(THREADS + QUEUE_CAPACITY);
+  private static final ThreadPoolExecutor INSTANCE = create();
+
+  private MessageDispatchExecutor() {
+  }
+
+  /**
+   * Blocks until one more connection can be served or queued. The slot is released when the message loop
+   * of the connection started with {@link #forConnection(CompletableFuture)} ends,
+   * or by {@link #releaseSlot()} if no connection was started.
+   */
+  static void acquireSlot() {
+    SLOTS.acquireUninterruptibly();
+  }
+
+  static void releaseSlot() {
+    SLOTS.release();
+  }
+
+  /**
+   * @param done completed when the message loop of the connection ends, so nobody has to block waiting for it
+   * @return the executor to hand to lsp4j for a connection which has acquired a slot
+   */
+  @NotNull
+  static ExecutorService forConnection(@NotNull CompletableFuture<Void> done) {
+    return new ConnectionExecutor(done);
+  }
+
+  @NotNull
+  private static ThreadPoolExecutor create() {
+    final var executor = new ThreadPoolExecutor(
+        THREADS, THREADS,
+        60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+        ConcurrencyUtil.newNamedThreadFactory("IdeaLS message dispatcher"),
+        (task, ignored) -> {
+          // not expected: connections are accepted only when there is a slot for them
+          REJECTED.incrementAndGet();
+          throw new RejectedExecutionException("Too many connections: " + THREADS + " served, " + QUEUE_CAPACITY + " waiting");
+        });
+    executor.allowCoreThreadTimeOut(true);
+
+    Metrics.registerGauge("dispatch.active", executor::getActiveCount);
+    Metrics.registerGauge("dispatch.queued", () -> executor.getQueue().size());
+    Metrics.registerGauge("dispatch.waiting", SLOTS::getQueueLength);
+    Metrics.registerGauge("dispatch.rejected", REJECTED::get);
+    return executor;
+  }
+
+  /**
+   * Runs the message loop of one connection in the shared pool and reports its end.
+   */
+  private static final class ConnectionExecutor extends AbstractExecutorService {
+    @NotNull
+    private final CompletableFuture<Void> done;
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private ConnectionExecutor(@NotNull CompletableFuture<Void> done) {
+      this.done = done;
+    }
+
+    @Override
+    public void execute(@NotNull Runnable command) {
+      if (!started.compareAndSet(false, true)) {
+        throw new RejectedExecutionException("The message loop of the connection is already started");
+      }
+      try {
+        INSTANCE.execute(() -> {
+          try {
+            command.run();
+            done.complete(null);
+          } catch (Throwable e) {
+            done.completeExceptionally(e);
+          } finally {
+            releaseSlot();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        releaseSlot();
+        done.completeExceptionally(e);
+        throw e;
+      }
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public @NotNull List<Runnable> shutdownNow() {
+      return List.of();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return done.isDone();
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return done.isDone();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, @NotNull TimeUnit unit) {
+      return done.isDone();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package org.rri.ideals.server.bootstrap;
+
+import com.intellij.codeInsight.completion.CompletionContributor;
+import com.intellij.lang.Language;
+import com.intellij.navigation.ChooseByNameContributor;
+import com.intellij.navigation.ChooseByNameContributorEx;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.impl.source.resolve.ResolveCache;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.ProjectService;
+import org.rri.ideals.server.util.Metrics;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens the given projects before the server starts accepting connections, so that the first session
+ * doesn't pay for project opening and indexing.
+ * <p>
+ * The projects are acquired from {@link ProjectService} and never released, so they stay opened
+ * for the whole server lifetime regardless of the sessions using them.
+ */
+final class ProjectPreloader {
+  private final static Logger LOG = Logger.getInstance(ProjectPreloader.class);
+
+  private ProjectPreloader() {
+  }
+
+  /**
+   * Blocks until all the projects are opened, indexed and warmed up.
+   * A project failed to open is logged and skipped.
+   */
+  static void preload(@NotNull List<LspPath> roots) {
+    if (roots.isEmpty()) {
+      return;
+    }
+
+    Metrics.run(() -> "preload: " + roots, () -> CompletableFuture.allOf(
+        roots.stream()
+            .map(ProjectPreloader::preload)
+            .toArray(CompletableFuture[]::new)
+    ).join());
+  }
+
+  @NotNull
+  private static CompletableFuture<Void> preload(@NotNull LspPath root) {
+    LOG.info("Preloading project: " + root);
+    return ProjectService.getInstance().resolveProjectFromRoot(root)
+        .thenCompose(ProjectPreloader::warmUp)
+        .exceptionally(e -> {
+          LOG.warn("Couldn't preload project: " + root, e);
+          return null;
+        });
+  }
+
+  @NotNull
+  private static CompletableFuture<Void> warmUp(@NotNull Project project) {
+    final var result = new CompletableFuture<Void>();
+    ReadAction.nonBlocking(() -> warmUpCaches(project))
+        .inSmartMode(project)
+        .expireWith(project)
+        .submit(AppExecutorUtil.getAppExecutorService())
+        .onSuccess(result::complete)
+        .onError(result::completeExceptionally);
+    return result;
+  }
+
+  private static void warmUpCaches(@NotNull Project project) {
+    // loads the class name indices of all the languages into memory
+    final var classNames = new AtomicInteger();
+    final var scope = GlobalSearchScope.allScope(project);
+    for (var contributor : ChooseByNameContributor.CLASS_EP_NAME.getExtensionList()) {
+      if (contributor instanceof ChooseByNameContributorEx contributorEx) {
+        contributorEx.processNames(name -> {
+          classNames.incrementAndGet();
+          return true;
+        }, scope, null);
+      }
+    }
+
+    // instantiates the completion contributors
+    Language.getRegisteredLanguages().forEach(CompletionContributor::forLanguage);
+
+    // resolve results are cached per PSI element and dropped on any PSI change,
+    // so only the cache itself can be prepared in advance
+    ResolveCache.getInstance(project);
+
+    LOG.info("Project is warmed up (" + classNames.get() + " class names): " + project);
+  }
+}
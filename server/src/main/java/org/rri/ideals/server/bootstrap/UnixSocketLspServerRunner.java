@@ -0,0 +1,212 @@
+package org.rri.ideals.server.bootstrap;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rri.ideals.server.util.MiscUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+
+class UnixSocketLspServerRunner extends LspServerRunnerBase {
+  private final static Logger LOG = Logger.getInstance(UnixSocketLspServerRunner.class);
+
+  // file type bits of st_mode
+  private static final int S_IFMT = 0170000;
+  private static final int S_IFSOCK = 0140000;
+
+  @Nullable
+  private ServerSocketChannel serverSocket;
+
+  @NotNull
+  private Path socketPath = Paths.get(System.getProperty("java.io.tmpdir"), "ideals.sock");  // default path
+
+  UnixSocketLspServerRunner() {
+    super(true);
+  }
+
+  public void setSocketPath(@NotNull Path socketPath) {
+    this.socketPath = socketPath;
+  }
+
+  @Override
+  protected void prepareForListening() {
+    LOG.info("Starting the LSP server on unix socket: " + socketPath);
+    try {
+      serverSocket = bindPrivately(socketPath.toAbsolutePath());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * The socket is bound in a new directory accessible to the owner only and is moved to the target path
+   * when its own permissions are restricted, so nobody else can connect to it in between.
+   */
+  @NotNull
+  private static ServerSocketChannel bindPrivately(@NotNull Path target) throws IOException {
+    final var privateDir = createPrivateDirectory(target.getParent());
+    final var boundPath = privateDir.resolve(target.getFileName());
+    final var channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    try {
+      channel.bind(UnixDomainSocketAddress.of(boundPath));
+      restrictAccessToOwner(boundPath);
+      // a socket file left by a previous run prevents binding
+      checkStaleSocket(target);
+      Files.move(boundPath, target, StandardCopyOption.ATOMIC_MOVE);
+      return channel;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      Files.deleteIfExists(boundPath);
+      throw e;
+    } finally {
+      Files.deleteIfExists(privateDir);
+    }
+  }
+
+  @NotNull
+  private static Path createPrivateDirectory(@NotNull Path parent) throws IOException {
+    try {
+      return Files.createTempDirectory(parent, ".ideals",
+          PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+    } catch (UnsupportedOperationException e) {
+      LOG.warn("Couldn't restrict access to the socket directory in: " + parent);
+      return Files.createTempDirectory(parent, ".ideals");
+    }
+  }
+
+  private static void restrictAccessToOwner(@NotNull Path path) throws IOException {
+    try {
+      Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+    } catch (UnsupportedOperationException e) {
+      LOG.warn("Couldn't restrict access to the socket file: " + path);
+    }
+  }
+
+  /**
+   * Only a socket nobody listens on may be replaced: the path could point to an arbitrary file by mistake.
+   */
+  private static void checkStaleSocket(@NotNull Path path) throws IOException {
+    if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+      return;
+    }
+    if (!isSocket(path)) {
+      throw new IOException("Not a socket, refusing to replace: " + path);
+    }
+    try (var ignored = SocketChannel.open(UnixDomainSocketAddress.of(path))) {
+      throw new IOException("Another server is listening on: " + path);
+    } catch (ConnectException e) {
+      LOG.info("Replacing a stale socket: " + path);
+    }
+  }
+
+  private static boolean isSocket(@NotNull Path path) throws IOException {
+    try {
+      final var mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+      return (mode & S_IFMT) == S_IFSOCK;
+    } catch (UnsupportedOperationException | IllegalArgumentException e) {
+      return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+    }
+  }
+
+  @Override
+  @NotNull
+  protected Connection waitForConnection() {
+    assert serverSocket != null;
+    try {
+      var socketChannel = serverSocket.accept();
+      return new Connection(new ChannelInputStream(socketChannel), new ChannelOutputStream(socketChannel));
+    } catch (Exception e) {
+      LOG.error("Socket connection error: " + e);
+      closeServerSocket();
+      throw MiscUtil.wrap(e);
+    }
+  }
+
+  private void closeServerSocket() {
+    if (serverSocket != null) {
+      try {
+        LOG.info("Close language server socket " + socketPath);
+        serverSocket.close();
+        if (Files.exists(socketPath, LinkOption.NOFOLLOW_LINKS) && isSocket(socketPath)) {
+          Files.delete(socketPath);
+        }
+      } catch (IOException e) {
+        LOG.error("Close ServerSocket exception: " + e);
+      }
+    }
+    serverSocket = null;
+  }
+
+  // Channels.newInputStream/newOutputStream serialize reads and writes of a blocking socket channel
+  // on the same lock, so a pending read would block every write; these streams don't share any lock.
+
+  private static class ChannelInputStream extends InputStream {
+    @NotNull
+    private final SocketChannel channel;
+
+    ChannelInputStream(@NotNull SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final var buf = new byte[1];
+      return read(buf, 0, 1) == -1 ? -1 : buf[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte @NotNull [] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      return channel.read(ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  private static class ChannelOutputStream extends OutputStream {
+    @NotNull
+    private final SocketChannel channel;
+
+    ChannelOutputStream(@NotNull SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte @NotNull [] b, int off, int len) throws IOException {
+      final var buf = ByteBuffer.wrap(b, off, len);
+      while (buf.hasRemaining()) {
+        channel.write(buf);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
@@ -22,6 +22,7 @@ import org.eclipse.lsp4j.Range;
 import org.eclipse.lsp4j.WorkspaceEdit;
 import org.jetbrains.annotations.NotNull;
 import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.ManagedDocuments;
 import org.rri.ideals.server.diagnostics.DiagnosticsService;
 import org.rri.ideals.server.util.EditorUtil;
 import org.rri.ideals.server.util.MiscUtil;
@@ -63,6 +64,8 @@ public final class CodeActionService {
   @NotNull
   public List<CodeAction> getCodeActions(@NotNull LspPath path, @NotNull Range range) {
 
+    project.getService(ManagedDocuments.class).commitDocument(path);
+
     var result = new Ref<List<CodeAction>>();
     ApplicationManager.getApplication().invokeAndWait(
         () -> MiscUtil.invokeWithPsiFileInReadAction(project, path, (file) -> {
@@ -96,10 +99,23 @@ public final class CodeActionService {
     return Optional.ofNullable(result.get()).orElse(Collections.emptyList());
   }
 
+  /**
+   * @return the path of the document the code action was computed for
+   */
   @NotNull
-  public WorkspaceEdit applyCodeAction(@NotNull CodeAction codeAction) {
-    final var actionData = new GsonBuilder().create()
+  public static LspPath getActionPath(@NotNull CodeAction codeAction) {
+    return LspPath.fromLspUri(parseActionData(codeAction).getUri());
+  }
+
+  @NotNull
+  private static ActionData parseActionData(@NotNull CodeAction codeAction) {
+    return new GsonBuilder().create()
         .fromJson(codeAction.getData().toString(), ActionData.class);
+  }
+
+  @NotNull
+  public WorkspaceEdit applyCodeAction(@NotNull CodeAction codeAction) {
+    final var actionData = parseActionData(codeAction);
 
     final var path = LspPath.fromLspUri(actionData.getUri());
     final var result = new WorkspaceEdit();
@@ -107,6 +123,7 @@ public final class CodeActionService {
     var disposable = Disposer.newDisposable();
 
     try {
+      project.getService(ManagedDocuments.class).commitDocument(path);
       final var psiFile = MiscUtil.resolvePsiFile(project, path);
 
       if (psiFile == null) {
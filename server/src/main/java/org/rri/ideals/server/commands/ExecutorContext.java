@@ -2,9 +2,13 @@ package org.rri.ideals.server.commands;
 
 import com.intellij.openapi.project.Project;
 import com.intellij.psi.PsiFile;
+import com.intellij.openapi.editor.Document;
+import org.eclipse.lsp4j.Position;
 import org.eclipse.lsp4j.jsonrpc.CancelChecker;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.rri.ideals.server.DocumentSnapshot;
+import org.rri.ideals.server.util.MiscUtil;
 
 final public class ExecutorContext {
 
@@ -12,13 +16,23 @@ final public class ExecutorContext {
   private final PsiFile file;
   @NotNull
   private final Project project;
-  @Nullable
+  @NotNull
   private final CancelChecker cancelToken;
+  @Nullable
+  private final DocumentSnapshot snapshot;
 
-  public ExecutorContext(@NotNull PsiFile file, @NotNull Project project, @Nullable CancelChecker cancelToken) {
+  public ExecutorContext(@NotNull PsiFile file, @NotNull Project project, @NotNull CancelChecker cancelToken) {
+    this(file, project, cancelToken, null);
+  }
+
+  public ExecutorContext(@NotNull PsiFile file,
+                         @NotNull Project project,
+                         @NotNull CancelChecker cancelToken,
+                         @Nullable DocumentSnapshot snapshot) {
     this.file = file;
     this.project = project;
     this.cancelToken = cancelToken;
+    this.snapshot = snapshot;
   }
 
   public @NotNull PsiFile getPsiFile() {
@@ -29,7 +43,25 @@ final public class ExecutorContext {
     return project;
   }
 
-  public @Nullable CancelChecker getCancelToken() {
+  public @NotNull CancelChecker getCancelToken() {
     return cancelToken;
   }
+
+  /**
+   * @return the text of the file at the revision the request was made to; {@code null} if the file isn't managed
+   */
+  public @Nullable DocumentSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Converts a position of the request's file without touching the document if the snapshot is known.
+   */
+  public int positionToOffset(@NotNull Document doc, @NotNull Position position) {
+    return snapshot != null ? snapshot.positionToOffset(position) : MiscUtil.positionToOffset(doc, position);
+  }
+
+  public @NotNull Position offsetToPosition(@NotNull Document doc, int offset) {
+    return snapshot != null ? snapshot.offsetToPosition(offset) : MiscUtil.offsetToPosition(doc, offset);
+  }
 }
@@ -1,31 +1,86 @@
 package org.rri.ideals.server.commands;
 
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
 import com.intellij.openapi.project.Project;
-import com.intellij.util.concurrency.AppExecutorUtil;
 import org.eclipse.lsp4j.jsonrpc.CancelChecker;
 import org.eclipse.lsp4j.jsonrpc.CompletableFutures;
+import org.eclipse.lsp4j.jsonrpc.ResponseErrorException;
+import org.eclipse.lsp4j.jsonrpc.messages.ResponseError;
+import org.eclipse.lsp4j.jsonrpc.messages.ResponseErrorCode;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.rri.ideals.server.DocumentSnapshot;
 import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.ManagedDocuments;
+import org.rri.ideals.server.scheduling.RequestPriority;
+import org.rri.ideals.server.scheduling.RequestScheduler;
+import org.rri.ideals.server.util.LspProgressIndicator;
+import org.rri.ideals.server.util.Metrics;
 import org.rri.ideals.server.util.MiscUtil;
 
+import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
 
 public abstract class LspCommand<R> {
   private static final Logger LOG = Logger.getInstance(LspCommand.class);
 
+  private static final AtomicLong OUTDATED = new AtomicLong();
+  private static final AtomicLong INTERRUPTED = new AtomicLong();
+
+  static {
+    Metrics.registerGauge("requests.outdated", OUTDATED::get);
+    Metrics.registerGauge("requests.interrupted", INTERRUPTED::get);
+  }
+
   @NotNull
   protected abstract Supplier<@NotNull String> getMessageSupplier();
 
-  protected abstract boolean isCancellable();
-
   protected abstract R execute(@NotNull ExecutorContext ctx);
 
+  @NotNull
+  protected RequestPriority getPriority() {
+    return RequestPriority.NORMAL;
+  }
+
+  /**
+   * @return {@code true} if the command must be executed on EDT, e.g. because it needs a real editor or
+   * modifies documents. Otherwise, the command is executed in background as a non-blocking read action,
+   * which is restarted if a write action interrupts it (see also {@link #isLongRunning()}).
+   */
+  protected boolean requiresEdt() {
+    return true;
+  }
+
+  /**
+   * @return {@code true} if the command may take long, e.g. a project-wide search. Restarting it after every
+   * write action could make it never finish while the user types, so it's retried once and then reported
+   * as {@code ContentModified}. Makes sense only for the commands executed in background.
+   */
+  protected boolean isLongRunning() {
+    return false;
+  }
+
+  /**
+   * Identifies the request among the requests of the same type to the same document, e.g. the position.
+   * Identical requests share the result (see {@link RequestCoalescer}).
+   *
+   * @return {@code null} if the result must never be shared, e.g. because the command modifies the document
+   */
+  @Nullable
+  protected Object getCoalescingKey() {
+    return null;
+  }
+
   public @NotNull CompletableFuture<@Nullable R> runAsync(@NotNull Project project, @NotNull LspPath path) {
     final var virtualFile = path.findVirtualFile();
     if (virtualFile == null) {
@@ -35,25 +90,140 @@ public abstract class LspCommand<R> {
     }
 
     LOG.info(getMessageSupplier().get());
-    Executor executor = AppExecutorUtil.getAppExecutorService();
-    if (isCancellable()) {
-      return CompletableFutures.computeAsync(executor, cancelToken -> getResult(path, project, cancelToken));
-    } else {
-      return CompletableFuture.supplyAsync(() -> getResult(path, project, null), executor);
+    final var coalescingKey = getCoalescingKey();
+    if (coalescingKey == null) {
+      return computeAsync(project, path);
     }
+    return project.getService(RequestCoalescer.class)
+        .coalesce(path, List.of(getClass(), coalescingKey), () -> computeAsync(project, path));
+  }
+
+  private @NotNull CompletableFuture<@Nullable R> computeAsync(@NotNull Project project, @NotNull LspPath path) {
+    // the text of the document the request was made to; requests are handled in order with didChange
+    final var snapshot = project.getService(ManagedDocuments.class).getSnapshot(path);
+    Executor executor = RequestScheduler.getInstance().executor(getPriority());
+    return CompletableFutures.computeAsync(executor, cancelToken -> getResult(path, project, snapshot, cancelToken));
   }
 
   private @Nullable R getResult(@NotNull LspPath path,
                                 @NotNull Project project,
-                                @Nullable CancelChecker cancelToken) {
+                                @Nullable DocumentSnapshot snapshot,
+                                @NotNull CancelChecker cancelToken) {
+    final var version = versionOf(snapshot);
+    // the request could have been cancelled or overtaken by a document change while waiting in the executor queue
+    cancelToken.checkCanceled();
+    checkNotOutdated(project, path, version);
+
+    final R result;
+    if (requiresEdt()) {
+      result = getResultOnEdt(path, project, snapshot, cancelToken);
+    } else if (isLongRunning()) {
+      result = getResultWithWriteActionPriority(path, project, snapshot, cancelToken);
+    } else {
+      result = getResultInBackground(path, project, snapshot, cancelToken);
+    }
+
+    // reports the cancellation to the client instead of an empty result
+    cancelToken.checkCanceled();
+    checkNotOutdated(project, path, version);
+    return result;
+  }
+
+  private @Nullable R getResultOnEdt(@NotNull LspPath path,
+                                     @NotNull Project project,
+                                     @Nullable DocumentSnapshot snapshot,
+                                     @NotNull CancelChecker cancelToken) {
+    final var version = versionOf(snapshot);
     final AtomicReference<R> ref = new AtomicReference<>();
     ApplicationManager.getApplication()
-        .invokeAndWait(
-            () -> ref.set(MiscUtil.produceWithPsiFileInReadAction(
-                project,
-                path,
-                (psiFile) -> execute(new ExecutorContext(psiFile, project, cancelToken))
-            )));
+        .invokeAndWait(() -> {
+          // ... or while waiting for the EDT
+          if (cancelToken.isCanceled() || isOutdated(project, path, version)) {
+            return;
+          }
+          project.getService(ManagedDocuments.class).commitDocument(path);
+          try {
+            ref.set(ProgressManager.getInstance().runProcess(
+                () -> MiscUtil.produceWithPsiFileInReadAction(
+                    project,
+                    path,
+                    (psiFile) -> execute(new ExecutorContext(psiFile, project, cancelToken, snapshot))
+                ), new LspProgressIndicator(cancelToken)));
+          } catch (ProcessCanceledException e) {
+            if (!cancelToken.isCanceled()) {
+              throw e;
+            }
+          }
+        });
     return ref.get();
   }
+
+  private @Nullable R getResultInBackground(@NotNull LspPath path,
+                                            @NotNull Project project,
+                                            @Nullable DocumentSnapshot snapshot,
+                                            @NotNull CancelChecker cancelToken) {
+    final var version = versionOf(snapshot);
+    // takes EDT only if there are changes not committed yet
+    project.getService(ManagedDocuments.class).commitDocument(path);
+    try {
+      return ReadAction.nonBlocking(() -> MiscUtil.produceWithPsiFileInReadAction(
+              project,
+              path,
+              (psiFile) -> execute(new ExecutorContext(psiFile, project, cancelToken, snapshot))
+          ))
+          .expireWhen(() -> isOutdated(project, path, version))
+          .wrapProgress(new LspProgressIndicator(cancelToken))
+          .executeSynchronously();
+    } catch (ProcessCanceledException e) {
+      if (!cancelToken.isCanceled() && !isOutdated(project, path, version)) {
+        throw e;
+      }
+      return null;
+    }
+  }
+
+  private @Nullable R getResultWithWriteActionPriority(@NotNull LspPath path,
+                                                       @NotNull Project project,
+                                                       @Nullable DocumentSnapshot snapshot,
+                                                       @NotNull CancelChecker cancelToken) {
+    final var version = versionOf(snapshot);
+    final AtomicReference<R> ref = new AtomicReference<>();
+    for (int attempt = 0; attempt < 2; attempt++) {
+      project.getService(ManagedDocuments.class).commitDocument(path);
+      checkNotOutdated(project, path, version);
+      final var completed = ProgressIndicatorUtils.runInReadActionWithWriteActionPriority(
+          () -> ref.set(MiscUtil.produceWithPsiFileInReadAction(
+              project,
+              path,
+              (psiFile) -> execute(new ExecutorContext(psiFile, project, cancelToken, snapshot))
+          )),
+          new LspProgressIndicator(cancelToken));
+      if (completed) {
+        return ref.get();
+      }
+      cancelToken.checkCanceled();
+    }
+
+    INTERRUPTED.incrementAndGet();
+    LOG.debug("Request is interrupted by write actions twice: " + path);
+    throw new ResponseErrorException(
+        new ResponseError(ResponseErrorCode.ContentModified, "Request is interrupted by modifications: " + path, null));
+  }
+
+  private static @Nullable Integer versionOf(@Nullable DocumentSnapshot snapshot) {
+    return snapshot != null ? snapshot.getVersion() : null;
+  }
+
+  private static boolean isOutdated(@NotNull Project project, @NotNull LspPath path, @Nullable Integer version) {
+    return !Objects.equals(version, project.getService(ManagedDocuments.class).getVersion(path));
+  }
+
+  private static void checkNotOutdated(@NotNull Project project, @NotNull LspPath path, @Nullable Integer version) {
+    if (isOutdated(project, path, version)) {
+      OUTDATED.incrementAndGet();
+      LOG.debug("Request is outdated by a document change: " + path);
+      throw new ResponseErrorException(
+          new ResponseError(ResponseErrorCode.ContentModified, "Document has been modified: " + path, null));
+    }
+  }
 }
@@ -0,0 +1,187 @@
+package org.rri.ideals.server.commands;
+
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.util.PsiModificationTracker;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.ManagedDocuments;
+import org.rri.ideals.server.util.Metrics;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Shares the results of identical read-only requests.
+ * <p>
+ * Requests are identical if they have the same key (e.g. the method and the position) and are made to the same
+ * document in the same state: both the client's document version and the PSI modification count must match.
+ * Concurrent identical requests share one computation; a completed result is reused by the identical requests
+ * made within {@code ideals.coalescing.ttl} milliseconds. The shared computation is cancelled only when all
+ * the requests sharing it are cancelled.
+ */
+@Service(Service.Level.PROJECT)
+public final class RequestCoalescer {
+  private static final Logger LOG = Logger.getInstance(RequestCoalescer.class);
+
+  private static final long TTL_MS = Long.getLong("ideals.coalescing.ttl", 3000);
+
+  private static final AtomicLong HITS = new AtomicLong();
+  private static final AtomicLong MISSES = new AtomicLong();
+
+  static {
+    Metrics.registerGauge("coalescing.hits", HITS::get);
+    Metrics.registerGauge("coalescing.misses", MISSES::get);
+  }
+
+  @NotNull
+  private final Project project;
+
+  @NotNull
+  private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+  public RequestCoalescer(@NotNull Project project) {
+    this.project = project;
+  }
+
+  @NotNull
+  public <T> CompletableFuture<T> coalesce(@NotNull LspPath path,
+                                           @NotNull Object requestKey,
+                                           @NotNull Supplier<@NotNull CompletableFuture<T>> computation) {
+    // results computed in dumb mode are incomplete and become outdated without any document change
+    if (DumbService.isDumb(project)) {
+      return computation.get();
+    }
+
+    purgeExpired();
+
+    final var key = new Key(path, requestKey,
+        project.getService(ManagedDocuments.class).getVersion(path),
+        PsiModificationTracker.getInstance(project).getModificationCount());
+
+    final var entry = new Entry(key);
+    while (true) {
+      final var existing = entries.putIfAbsent(key, entry);
+      if (existing == null) {
+        break;
+      }
+      if (existing.isReusable()) {
+        final CompletableFuture<T> dependent = existing.tryAttach();
+        if (dependent != null) {
+          HITS.incrementAndGet();
+          LOG.debug("Request is coalesced: " + requestKey);
+          return dependent;
+        }
+      }
+      // expired, failed or being cancelled
+      entries.remove(key, existing);
+    }
+
+    MISSES.incrementAndGet();
+    final CompletableFuture<T> dependent = entry.tryAttach();
+    assert dependent != null;
+    final var running = computation.get();
+    entry.start(running);
+    running.whenComplete((result, error) -> {
+      if (error != null) {
+        // errors (including cancellations) aren't cached
+        entries.remove(key, entry);
+        entry.shared.completeExceptionally(error);
+      } else {
+        entry.completedAt = System.currentTimeMillis();
+        entry.shared.complete(result);
+      }
+    });
+    return dependent;
+  }
+
+  private void purgeExpired() {
+    final var now = System.currentTimeMillis();
+    entries.values().removeIf(it -> it.isExpired(now));
+  }
+
+  private record Key(@NotNull LspPath path, @NotNull Object requestKey, @Nullable Integer version, long psiModificationCount) {
+  }
+
+  private final class Entry {
+    @NotNull
+    private final Key key;
+
+    @NotNull
+    private final CompletableFuture<Object> shared = new CompletableFuture<>();
+
+    // the number of requests waiting for the result; guarded by this
+    private int waiters = 0;
+
+    // all the requests have been cancelled and so has been the computation; guarded by this
+    private boolean abandoned = false;
+
+    private volatile long completedAt = 0;
+
+    // guarded by this
+    @Nullable
+    private CompletableFuture<?> computation;
+
+    private Entry(@NotNull Key key) {
+      this.key = key;
+    }
+
+    private boolean isReusable() {
+      return !shared.isCompletedExceptionally() && !isExpired(System.currentTimeMillis());
+    }
+
+    private boolean isExpired(long now) {
+      final var completed = completedAt;
+      return completed != 0 && now - completed > TTL_MS;
+    }
+
+    private void start(@NotNull CompletableFuture<?> running) {
+      synchronized (this) {
+        computation = running;
+        if (!abandoned) {
+          return;
+        }
+      }
+      running.cancel(true);
+    }
+
+    /**
+     * @return a future completed with the shared result, cancelling it doesn't affect the other requests;
+     * {@code null} if the computation has been cancelled because nobody waited for it
+     */
+    @SuppressWarnings("unchecked")
+    @Nullable
+    private synchronized <T> CompletableFuture<T> tryAttach() {
+      if (abandoned) {
+        return null;
+      }
+      waiters++;
+      final var dependent = (CompletableFuture<T>) shared.copy();
+      dependent.whenComplete((ignored1, ignored2) -> detach(dependent.isCancelled()));
+      return dependent;
+    }
+
+    private void detach(boolean cancelled) {
+      final CompletableFuture<?> running;
+      synchronized (this) {
+        waiters--;
+        if (!cancelled || waiters > 0 || shared.isDone()) {
+          return;
+        }
+        // nobody waits for the result anymore
+        abandoned = true;
+        running = computation;
+      }
+      // the identical requests made from now on start a new computation instead of joining the cancelled one
+      entries.remove(key, this);
+      if (running != null) {
+        running.cancel(true);
+      }
+    }
+  }
+}
@@ -1,15 +1,19 @@
 package org.rri.ideals.server.completions;
 
+import org.jetbrains.annotations.NotNull;
+
 import java.util.Objects;
 
 @SuppressWarnings("FieldMayBeFinal")  // fields are set via reflection
 final class CompletionItemData {
   private int completionDataVersion;
   private int lookupElementIndex;
+  private String uri;
 
-  CompletionItemData(int completionDataVersion, int lookupElementIndex) {
+  CompletionItemData(int completionDataVersion, int lookupElementIndex, @NotNull String uri) {
     this.completionDataVersion = completionDataVersion;
     this.lookupElementIndex = lookupElementIndex;
+    this.uri = uri;
   }
 
   public int getCompletionDataVersion() {
@@ -20,24 +24,30 @@ final class CompletionItemData {
     return lookupElementIndex;
   }
 
+  public String getUri() {
+    return uri;
+  }
+
   @Override
   public boolean equals(Object obj) {
     if (obj == this) return true;
     if (obj == null || obj.getClass() != this.getClass()) return false;
     var that = (CompletionItemData) obj;
     return this.completionDataVersion == that.completionDataVersion &&
-        this.lookupElementIndex == that.lookupElementIndex;
+        this.lookupElementIndex == that.lookupElementIndex &&
+        Objects.equals(this.uri, that.uri);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(completionDataVersion, lookupElementIndex);
+    return Objects.hash(completionDataVersion, lookupElementIndex, uri);
   }
 
   @Override
   public String toString() {
     return "CompletionResolveData[" +
         "completionDataVersion=" + completionDataVersion + ", " +
-        "lookupElementIndex=" + lookupElementIndex + ']';
+        "lookupElementIndex=" + lookupElementIndex + ", " +
+        "uri=" + uri + ']';
   }
 }
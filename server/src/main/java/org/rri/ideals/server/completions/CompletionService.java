@@ -40,6 +40,7 @@ import org.eclipse.lsp4j.jsonrpc.CancelChecker;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.jetbrains.annotations.NotNull;
 import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.ManagedDocuments;
 import org.rri.ideals.server.completions.util.IconUtil;
 import org.rri.ideals.server.completions.util.TextEditRearranger;
 import org.rri.ideals.server.completions.util.TextEditWithOffsets;
@@ -83,19 +84,32 @@ final public class CompletionService implements Disposable {
         LOG.warn("file not found: " + path);
         return List.of();
       }
+      project.getService(ManagedDocuments.class).commitDocument(path);
       final var psiFile = MiscUtil.resolvePsiFile(project, path);
       assert psiFile != null;
-      return doComputeCompletions(psiFile, position, cancelChecker);
+      return doComputeCompletions(path, psiFile, position, cancelChecker);
     } finally {
       cancelChecker.checkCanceled();
     }
   }
 
+  /**
+   * @return the path of the document the completion item was computed for
+   */
+  @NotNull
+  public static LspPath getItemPath(@NotNull CompletionItem item) {
+    return LspPath.fromLspUri(parseItemData(item).getUri());
+  }
+
+  @NotNull
+  private static CompletionItemData parseItemData(@NotNull CompletionItem item) {
+    return new Gson().fromJson(item.getData().toString(), CompletionItemData.class);
+  }
+
   @NotNull
   public CompletionItem resolveCompletion(@NotNull CompletionItem unresolved, @NotNull CancelChecker cancelChecker) {
     LOG.info("start completion resolve");
-    final var completionResolveData =
-        new Gson().fromJson(unresolved.getData().toString(), CompletionItemData.class);
+    final var completionResolveData = parseItemData(unresolved);
     try {
       return doResolve(completionResolveData.getCompletionDataVersion(),
           completionResolveData.getLookupElementIndex(), unresolved, cancelChecker);
@@ -286,7 +300,8 @@ final public class CompletionService implements Disposable {
   }
 
 
-  private @NotNull List<CompletionItem> doComputeCompletions(@NotNull PsiFile psiFile,
+  private @NotNull List<CompletionItem> doComputeCompletions(@NotNull LspPath path,
+                                                             @NotNull PsiFile psiFile,
                                                              @NotNull Position position,
                                                              @NotNull CancelChecker cancelChecker) {
     VoidCompletionProcess process = new VoidCompletionProcess();
@@ -337,7 +352,7 @@ final public class CompletionService implements Disposable {
         var document = MiscUtil.getDocument(psiFile);
         assert document != null;
         resultRef.set(convertLookupElementsWithMatcherToCompletionItems(
-            lookupElementsWithMatcherRef.get(), document, position, completionDataVersionRef.get()));
+            lookupElementsWithMatcherRef.get(), document, position, completionDataVersionRef.get(), path));
       });
     } finally {
       WriteCommandAction.runWriteCommandAction(project, () -> Disposer.dispose(process));
@@ -350,7 +365,8 @@ final public class CompletionService implements Disposable {
       @NotNull List<LookupElementWithMatcher> lookupElementsWithMatchers,
       @NotNull Document document,
       @NotNull Position position,
-      int completionDataVersion
+      int completionDataVersion,
+      @NotNull LspPath path
   ) {
     var result = new ArrayList<CompletionItem>();
     var currentCaretOffset = MiscUtil.positionToOffset(document, position);
@@ -368,7 +384,7 @@ final public class CompletionService implements Disposable {
                     );
                     range.setEnd(position);
                   }));
-      item.setData(new CompletionItemData(completionDataVersion, i));
+      item.setData(new CompletionItemData(completionDataVersion, i, path.toLspUri()));
       result.add(item);
     }
     return result;
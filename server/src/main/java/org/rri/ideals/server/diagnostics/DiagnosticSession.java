@@ -1,5 +1,6 @@
 package org.rri.ideals.server.diagnostics;
 
+import com.intellij.codeInsight.daemon.impl.DaemonProgressIndicator;
 import org.jetbrains.annotations.NotNull;
 
 public interface DiagnosticSession {
@@ -8,4 +9,12 @@ public interface DiagnosticSession {
   boolean isOutdated();
 
   void signalRestart();
+
+  /**
+   * @return the progress the analysis runs under; the session may cancel it to interrupt the analysis
+   */
+  @NotNull
+  default DaemonProgressIndicator createProgress() {
+    return new DaemonProgressIndicator();
+  }
 }
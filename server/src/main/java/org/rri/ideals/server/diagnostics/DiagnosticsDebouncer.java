@@ -0,0 +1,105 @@
+package org.rri.ideals.server.diagnostics;
+
+import org.jetbrains.annotations.NotNull;
+import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.util.Metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Computes the delay before analyzing a file from the recent observations of the file.
+ * <p>
+ * While the user is typing, the analysis should start right after a burst of changes, so the delay is a bit longer
+ * than the usual interval between the changes. An analysis taking long is restarted by every change, so the delay
+ * is never much shorter than the recent analyses take. The delay is clamped to
+ * [{@code ideals.diagnostics.minDelay}, {@code ideals.diagnostics.maxDelay}] milliseconds; until the file is
+ * measured, {@link DiagnosticsService#DELAY} is used.
+ * <p>
+ * The values observed for the latest changed or analyzed file are exposed as {@link Metrics} gauges.
+ */
+final class DiagnosticsDebouncer {
+  private static final long MIN_DELAY_MS = Long.getLong("ideals.diagnostics.minDelay", 50);
+  private static final long MAX_DELAY_MS = Long.getLong("ideals.diagnostics.maxDelay", 2000);
+
+  // the changes separated by a longer pause don't belong to the same burst of typing
+  private static final long TYPING_PAUSE_MS = 2000;
+
+  // the weight of the latest observation in the moving averages
+  private static final double ALPHA = 0.3;
+
+  private static final AtomicLong LAST_DELAY_MS = new AtomicLong();
+  private static final AtomicLong LAST_TYPING_INTERVAL_MS = new AtomicLong();
+  private static final AtomicLong LAST_ANALYSIS_MS = new AtomicLong();
+
+  static {
+    Metrics.registerGauge("diagnostics.debounce.delayMs", LAST_DELAY_MS::get);
+    Metrics.registerGauge("diagnostics.debounce.typingIntervalMs", LAST_TYPING_INTERVAL_MS::get);
+    Metrics.registerGauge("diagnostics.debounce.analysisMs", LAST_ANALYSIS_MS::get);
+  }
+
+  private static final class FileStats {
+    private long lastChangeAt = -1;
+    private double typingIntervalMs = -1;
+    private double analysisMs = -1;
+  }
+
+  private final ConcurrentHashMap<LspPath, FileStats> stats = new ConcurrentHashMap<>();
+
+  /**
+   * Records a change of the file made by the user at the given time.
+   */
+  void onChange(@NotNull LspPath path, long nowNanos) {
+    final var fileStats = stats.computeIfAbsent(path, ignored -> new FileStats());
+    synchronized (fileStats) {
+      if (fileStats.lastChangeAt >= 0) {
+        final var intervalMs = TimeUnit.NANOSECONDS.toMillis(nowNanos - fileStats.lastChangeAt);
+        if (intervalMs < TYPING_PAUSE_MS) {
+          fileStats.typingIntervalMs = average(fileStats.typingIntervalMs, intervalMs);
+          LAST_TYPING_INTERVAL_MS.set(Math.round(fileStats.typingIntervalMs));
+        }
+      }
+      fileStats.lastChangeAt = nowNanos;
+    }
+  }
+
+  /**
+   * @return the delay before analyzing the file, ms
+   */
+  long getDelay(@NotNull LspPath path) {
+    final var fileStats = stats.get(path);
+    if (fileStats == null) {
+      return DiagnosticsService.DELAY;
+    }
+    synchronized (fileStats) {
+      final var delay = computeDelay(fileStats);
+      LAST_DELAY_MS.set(delay);
+      return delay;
+    }
+  }
+
+  void onAnalyzed(@NotNull LspPath path, long durationNanos) {
+    final var fileStats = stats.computeIfAbsent(path, ignored -> new FileStats());
+    synchronized (fileStats) {
+      fileStats.analysisMs = average(fileStats.analysisMs, TimeUnit.NANOSECONDS.toMillis(durationNanos));
+      LAST_ANALYSIS_MS.set(Math.round(fileStats.analysisMs));
+    }
+  }
+
+  void forget(@NotNull LspPath path) {
+    stats.remove(path);
+  }
+
+  private static long computeDelay(@NotNull FileStats fileStats) {
+    if (fileStats.typingIntervalMs < 0 && fileStats.analysisMs < 0) {
+      return DiagnosticsService.DELAY;
+    }
+    final var delay = Math.max(fileStats.typingIntervalMs * 1.5, fileStats.analysisMs / 2);
+    return Math.max(MIN_DELAY_MS, Math.min(MAX_DELAY_MS, Math.round(delay)));
+  }
+
+  private static double average(double current, double observed) {
+    return current < 0 ? observed : current + ALPHA * (observed - current);
+  }
+}
@@ -4,35 +4,92 @@ import com.intellij.codeInsight.daemon.impl.HighlightInfo;
 import com.intellij.openapi.components.Service;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.ProperTextRange;
+import com.intellij.openapi.util.Ref;
 import com.intellij.psi.PsiFile;
+import com.intellij.psi.util.PsiModificationTracker;
 import com.intellij.util.concurrency.AppExecutorUtil;
+import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.DiagnosticServerCancellationData;
+import org.eclipse.lsp4j.DocumentDiagnosticReport;
 import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.RelatedFullDocumentDiagnosticReport;
+import org.eclipse.lsp4j.RelatedUnchangedDocumentDiagnosticReport;
+import org.eclipse.lsp4j.jsonrpc.CancelChecker;
+import org.eclipse.lsp4j.jsonrpc.ResponseErrorException;
+import org.eclipse.lsp4j.jsonrpc.messages.ResponseError;
+import org.eclipse.lsp4j.jsonrpc.messages.ResponseErrorCode;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rri.ideals.server.LspContext;
 import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.ManagedDocuments;
+import org.rri.ideals.server.scheduling.RequestPriority;
+import org.rri.ideals.server.scheduling.RequestScheduler;
+import org.rri.ideals.server.util.LargeFileMode;
+import org.rri.ideals.server.util.Metrics;
 import org.rri.ideals.server.util.MiscUtil;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service(Service.Level.PROJECT)
 final public class DiagnosticsService {
   private static final Logger LOG = Logger.getInstance(DiagnosticsService.class);
-  public static final int DELAY = 200;  // debounce delay ms -- massive updates one character each are typical when typing
+  // initial debounce delay ms -- massive updates one character each are typical when typing;
+  // adjusted for each file by DiagnosticsDebouncer
+  public static final int DELAY = 200;
+
+  private static final AtomicLong PULLS_UNCHANGED = new AtomicLong();
+  private static final AtomicLong CACHE_HITS = new AtomicLong();
+
+  static {
+    Metrics.registerGauge("diagnostics.pull.unchanged", PULLS_UNCHANGED::get);
+    Metrics.registerGauge("diagnostics.cache.hits", CACHE_HITS::get);
+  }
 
   @NotNull
   private final Project project;
 
   private final ConcurrentHashMap<LspPath, FileDiagnosticsState> states = new ConcurrentHashMap<>();
 
+  private final DiagnosticsDebouncer debouncer = new DiagnosticsDebouncer();
+
+  // the latest results of textDocument/diagnostic requests, used by the clients supporting the pull model
+  private final ConcurrentHashMap<LspPath, PullResult> pullResults = new ConcurrentHashMap<>();
+
+  // the latest published results of the documents, reused while neither the text nor PSI has changed
+  private final ConcurrentHashMap<LspPath, CachedResult> cachedResults = new ConcurrentHashMap<>();
+
+  record CachedResult(@NotNull String key,
+                      @NotNull List<Diagnostic> diagnostics,
+                      @NotNull QuickFixRegistry quickFixes) {
+  }
+
+  private record PullResult(@NotNull String resultId,
+                            @NotNull List<Diagnostic> diagnostics,
+                            @NotNull QuickFixRegistry quickFixes) {
+  }
+
   public DiagnosticsService(@NotNull Project project) {
     this.project = project;
   }
 
   public void launchDiagnostics(@NotNull LspPath path) {
+    if (isPullModel(path)) {
+      // the clients ask for the diagnostics themselves when they need them
+      return;
+    }
+
     MiscUtil.invokeWithPsiFileInReadAction(project, path, (psiFile) -> {
       final var document = MiscUtil.getDocument(psiFile);
       if (document == null) {
@@ -40,27 +97,236 @@ final public class DiagnosticsService {
         return;
       }
 
-      Optional.ofNullable(states.put(path, launchDiagnostic(path, psiFile, document)))
-          .ifPresent(FileDiagnosticsState::halt);
+      states.compute(path, (ignored, previous) -> {
+        if (previous != null) {
+          previous.halt();
+        }
+        return launchDiagnostic(path, psiFile, document, previous != null ? previous.getCompleteQuickFixes() : null);
+      });
     });
   }
 
+  /**
+   * Records an edit of the document made in the client; the delay before the analysis follows the typing cadence
+   * (see {@link DiagnosticsDebouncer}).
+   */
+  public void documentChanged(@NotNull LspPath path) {
+    debouncer.onChange(path, System.nanoTime());
+  }
+
   public void haltDiagnostics(@NotNull LspPath path) {
+    debouncer.forget(path);
+    pullResults.remove(path);
+    cachedResults.remove(path);
     Optional.ofNullable(states.remove(path)).ifPresent(FileDiagnosticsState::halt);
   }
 
+  /**
+   * Brings the diagnostics of all the open documents up to date, e.g. after indexing or changes of other files.
+   * The clients supporting the diagnostics refresh are asked to pull them again. The closed files are scanned again too
+   * (see {@link WorkspaceDiagnosticsScanner}).
+   */
+  public void refreshDiagnostics() {
+    project.getService(WorkspaceDiagnosticsScanner.class).scheduleScan();
+    LspContext.getContexts(project).stream()
+        .filter(LspContext::isDiagnosticsRefreshSupported)
+        .forEach(it -> it.getClient().refreshDiagnostics());
+    project.getService(ManagedDocuments.class).forEach(this::launchDiagnostics);
+  }
+
+  /**
+   * Handles {@code textDocument/diagnostic}. The result id is derived from the modification stamps of the document
+   * and the project's PSI, so the document isn't analyzed again until something it may depend on is changed.
+   */
+  @NotNull
+  public DocumentDiagnosticReport pullDiagnostics(@NotNull LspPath path,
+                                                  @Nullable String previousResultId,
+                                                  @NotNull CancelChecker cancelChecker) {
+    final var documents = project.getService(ManagedDocuments.class);
+    documents.commitDocument(path);
+    final var version = documents.getVersion(path);
+
+    final var task = new Ref<DiagnosticsTask>();
+    final var quickFixes = new QuickFixRegistry(version);
+    final var resultId = MiscUtil.produceWithPsiFileInReadAction(project, path, (psiFile) -> {
+      final var document = MiscUtil.getDocument(psiFile);
+      if (document == null) {
+        return null;
+      }
+      task.set(new DiagnosticsTask(path, psiFile, document, new DiagnosticSession() {
+        @Override
+        public @NotNull QuickFixRegistry getQuickFixRegistry() {
+          return quickFixes;
+        }
+
+        @Override
+        public boolean isOutdated() {
+          return cancelChecker.isCanceled() || !Objects.equals(version, documents.getVersion(path));
+        }
+
+        @Override
+        public void signalRestart() {
+          // the client repeats the request
+        }
+      }));
+      return computeResultId(document);
+    });
+    if (resultId == null) {
+      LOG.warn("document not found: " + path);
+      return new DocumentDiagnosticReport(new RelatedFullDocumentDiagnosticReport(List.of()));
+    }
+
+    final var cached = pullResults.get(path);
+    if (cached != null && cached.resultId().equals(resultId)) {
+      if (resultId.equals(previousResultId)) {
+        PULLS_UNCHANGED.incrementAndGet();
+        return new DocumentDiagnosticReport(new RelatedUnchangedDocumentDiagnosticReport(resultId));
+      }
+      return toFullReport(cached);
+    }
+
+    final List<Diagnostic> diagnostics;
+    try {
+      diagnostics = task.get().computeDiagnostics();
+    } catch (ProcessCanceledException e) {
+      cancelChecker.checkCanceled();
+      throw new ResponseErrorException(new ResponseError(ResponseErrorCode.ServerCancelled,
+          "Analysis has been cancelled: " + path, new DiagnosticServerCancellationData(true)));
+    }
+    quickFixes.markComplete();
+
+    final var result = new PullResult(resultId, diagnostics, quickFixes);
+    // the results computed for an outdated version can't be reused
+    if (Objects.equals(version, documents.getVersion(path))) {
+      pullResults.put(path, result);
+    }
+    return toFullReport(result);
+  }
+
+  /**
+   * @return the key of the analysis results: the hash of the text plus the PSI modification count of the project,
+   * so that the results are invalidated by changes of the other files as well; the results computed in dumb mode
+   * are incomplete and are never reused in smart mode; large files are analyzed in part only
+   */
+  @NotNull
+  String computeCacheKey(@NotNull LspPath path, @NotNull Document document) {
+    return DiagnosticsStore.hash(document.getImmutableCharSequence())
+        + ":" + PsiModificationTracker.getInstance(project).getModificationCount()
+        + (DumbService.isDumb(project) ? ":dumb" : "")
+        + (LargeFileMode.isLargeFile(document)
+        ? ":" + getLargeFileAnalysisRange(path, document)
+        : "");
+  }
+
+  /**
+   * @return the part of a large document which is analyzed: the part shown in the client's editors if it's known,
+   * the part around the last change otherwise (see {@link LargeFileMode})
+   */
+  @NotNull
+  ProperTextRange getLargeFileAnalysisRange(@NotNull LspPath path, @NotNull Document document) {
+    final var documents = project.getService(ManagedDocuments.class);
+    return LargeFileMode.getAnalysisRange(document, documents.getVisibleRanges(path), documents.getLastChangedLine(path));
+  }
+
+  @Nullable
+  CachedResult getCachedResult(@NotNull LspPath path, @NotNull String key) {
+    final var result = cachedResults.get(path);
+    if (result == null || !result.key().equals(key)) {
+      return null;
+    }
+    CACHE_HITS.incrementAndGet();
+    return result;
+  }
+
+  /**
+   * @return the diagnostics published last time, shifted according to the edits made since; the ones whose text has
+   * been changed are dropped
+   */
+  @NotNull
+  List<Diagnostic> getPreviousDiagnostics(@NotNull LspPath path) {
+    return getPreviousDiagnosticsOutside(path, -1, -1);
+  }
+
+  /**
+   * @return the diagnostics published last time which lie outside the given lines, shifted according to the edits
+   * made since; the ones whose text has been changed are dropped
+   */
+  @NotNull
+  List<Diagnostic> getPreviousDiagnosticsOutside(@NotNull LspPath path, int startLine, int endLine) {
+    final var previous = cachedResults.get(path);
+    if (previous == null) {
+      return List.of();
+    }
+    final var documents = project.getService(ManagedDocuments.class);
+    final var journal = documents.getEditJournal(path);
+    final var fromVersion = previous.quickFixes().getVersion();
+    final var toVersion = documents.getVersion(path);
+
+    final var result = new ArrayList<Diagnostic>();
+    for (var diagnostic : previous.diagnostics()) {
+      final var range = Objects.equals(fromVersion, toVersion)
+          ? diagnostic.getRange()
+          : journal != null ? journal.mapRange(diagnostic.getRange(), fromVersion, toVersion) : null;
+      if (range != null && (range.getEnd().getLine() < startLine || range.getStart().getLine() > endLine)) {
+        result.add(new Diagnostic(range, diagnostic.getMessage(), diagnostic.getSeverity(), diagnostic.getSource()));
+      }
+    }
+    return result;
+  }
+
+  void recordAnalysis(@NotNull LspPath path, long durationNanos) {
+    debouncer.onAnalyzed(path, durationNanos);
+  }
+
+  void cacheResult(@NotNull LspPath path, @NotNull CachedResult result) {
+    // the document may have been closed while it was analyzed
+    if (states.containsKey(path)) {
+      cachedResults.put(path, result);
+    }
+  }
+
+  @NotNull
+  private String computeResultId(@NotNull Document document) {
+    return document.getModificationStamp()
+        + ":" + PsiModificationTracker.getInstance(project).getModificationCount()
+        + (DumbService.isDumb(project) ? ":dumb" : "");
+  }
+
+  @NotNull
+  private static DocumentDiagnosticReport toFullReport(@NotNull PullResult result) {
+    final var report = new RelatedFullDocumentDiagnosticReport(result.diagnostics());
+    report.setResultId(result.resultId());
+    return new DocumentDiagnosticReport(report);
+  }
+
+  /**
+   * @return whether all the sessions which have the document open ask for its diagnostics themselves
+   */
+  private boolean isPullModel(@NotNull LspPath path) {
+    return LspContext.getContexts(project, path).stream().allMatch(LspContext::isPullDiagnosticsSupported);
+  }
+
+  /**
+   * While the document is being analyzed, the quick fixes of the previous analysis are returned, their ranges are
+   * shifted according to the edits made since.
+   */
   @NotNull
   public List<HighlightInfo.IntentionActionDescriptor> getQuickFixes(@NotNull LspPath path, @NotNull Range range) {
+    final var documents = project.getService(ManagedDocuments.class);
     return Optional.ofNullable(states.get(path))
-        .map(it -> it.getQuickFixes().collectForRange(range))
+        .map(FileDiagnosticsState::getCompleteQuickFixes)
+        .or(() -> Optional.ofNullable(pullResults.get(path)).map(PullResult::quickFixes))
+        .map(it -> it.collectForRange(range, documents.getEditJournal(path), documents.getVersion(path)))
         .orElse(Collections.emptyList());
   }
+
   @NotNull
   private FileDiagnosticsState launchDiagnostic(@NotNull LspPath path,
                                                 @NotNull PsiFile psiFile,
-                                                @NotNull Document doc) {
+                                                @NotNull Document doc,
+                                                @Nullable QuickFixRegistry previousQuickFixes) {
 
-    var quickFixes = new QuickFixRegistry();
+    var quickFixes = new QuickFixRegistry(project.getService(ManagedDocuments.class).getVersion(path));
 
     final var session = new DiagnosticsTask(path, psiFile, doc, new DiagnosticSession() {
       @Override
@@ -81,10 +347,12 @@ final public class DiagnosticsService {
       }
     });
 
+    // the delay is spent on the scheduled executor, the analysis itself competes with other requests as background work
     var task = AppExecutorUtil.getAppScheduledExecutorService().schedule(
-        session, DELAY, TimeUnit.MILLISECONDS);
+        () -> RequestScheduler.getInstance().executor(RequestPriority.BACKGROUND).execute(session),
+        debouncer.getDelay(path), TimeUnit.MILLISECONDS);
 
-    return new FileDiagnosticsState(psiFile, quickFixes, task);
+    return new FileDiagnosticsState(psiFile, quickFixes, previousQuickFixes, task);
 
   }
 }
@@ -0,0 +1,133 @@
+package org.rri.ideals.server.diagnostics;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.intellij.openapi.diagnostic.Logger;
+import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.jsonrpc.json.MessageJsonHandler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Results of the workspace scan kept across restarts, see {@link WorkspaceDiagnosticsScanner}.
+ * <p>
+ * Only the files with problems are stored. The stored diagnostics of a file are valid while the hash of its
+ * content is the same.
+ */
+final class DiagnosticsStore {
+  private static final Logger LOG = Logger.getInstance(DiagnosticsStore.class);
+
+  // knows how to (de)serialize the LSP structures
+  private static final Gson GSON = new MessageJsonHandler(Map.of()).getGson();
+  private static final Type ENTRIES_TYPE = new TypeToken<Map<String, Entry>>() {}.getType();
+
+  static final class Entry {
+    @NotNull
+    final String hash;
+
+    @NotNull
+    final List<Diagnostic> diagnostics;
+
+    Entry(@NotNull String hash, @NotNull List<Diagnostic> diagnostics) {
+      this.hash = hash;
+      this.diagnostics = diagnostics;
+    }
+  }
+
+  @NotNull
+  private final Path file;
+
+  // uri -> entry; guarded by this
+  @NotNull
+  private Map<String, Entry> entries = new HashMap<>();
+
+  private boolean dirty = false;  // guarded by this
+
+  DiagnosticsStore(@NotNull Path file) {
+    this.file = file;
+  }
+
+  synchronized void load() {
+    if (!Files.exists(file)) {
+      return;
+    }
+    try {
+      final Map<String, Entry> loaded = GSON.fromJson(Files.readString(file), ENTRIES_TYPE);
+      entries = loaded != null ? new HashMap<>(loaded) : new HashMap<>();
+    } catch (IOException | JsonParseException e) {
+      LOG.warn("Couldn't load stored diagnostics: " + file, e);
+      entries = new HashMap<>();
+    }
+    dirty = false;
+  }
+
+  synchronized void save() {
+    if (!dirty) {
+      return;
+    }
+    try {
+      Files.createDirectories(file.getParent());
+      final var temp = file.resolveSibling(file.getFileName() + ".tmp");
+      Files.writeString(temp, GSON.toJson(entries, ENTRIES_TYPE));
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      dirty = false;
+    } catch (IOException e) {
+      LOG.warn("Couldn't save diagnostics: " + file, e);
+    }
+  }
+
+  synchronized void put(@NotNull String uri, @NotNull String hash, @NotNull List<Diagnostic> diagnostics) {
+    if (diagnostics.isEmpty()) {
+      dirty |= entries.remove(uri) != null;
+    } else {
+      entries.put(uri, new Entry(hash, diagnostics));
+      dirty = true;
+    }
+  }
+
+  @Nullable
+  synchronized Entry get(@NotNull String uri) {
+    return entries.get(uri);
+  }
+
+  /**
+   * Drops the entries of the files other than the given ones, e.g. deleted or excluded from the project.
+   */
+  synchronized void retain(@NotNull Set<String> uris) {
+    dirty |= entries.keySet().retainAll(uris);
+  }
+
+  void forEach(@NotNull BiConsumer<@NotNull String, @NotNull Entry> consumer) {
+    final Map<String, Entry> copy;
+    synchronized (this) {
+      copy = new HashMap<>(entries);
+    }
+    copy.forEach(consumer);
+  }
+
+  @NotNull
+  static String hash(@NotNull CharSequence text) {
+    try {
+      final var digest = MessageDigest.getInstance("SHA-256");
+      return HexFormat.of().formatHex(digest.digest(text.toString().getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -2,9 +2,14 @@ package org.rri.ideals.server.diagnostics;
 
 import com.intellij.codeInsight.daemon.impl.DaemonCodeAnalyzerEx;
 import com.intellij.codeInsight.daemon.impl.DaemonProgressIndicator;
+import com.intellij.codeInsight.daemon.impl.GeneralHighlightingPass;
 import com.intellij.codeInsight.daemon.impl.HighlightInfo;
+import com.intellij.codeInsight.daemon.impl.HighlightInfoProcessor;
 import com.intellij.codeInsight.daemon.impl.HighlightingSessionImpl;
+import com.intellij.codeInsight.daemon.impl.LocalInspectionsPass;
+import com.intellij.codeInsight.daemon.impl.TextEditorHighlightingPassRegistrarEx;
 import com.intellij.lang.annotation.HighlightSeverity;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.progress.ProcessCanceledException;
@@ -12,16 +17,24 @@ import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.IndexNotReadyException;
 import com.intellij.openapi.util.ProperTextRange;
 import com.intellij.psi.PsiFile;
+import com.intellij.util.containers.ContainerUtil;
 import org.eclipse.lsp4j.*;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.rri.ideals.server.LspContext;
 import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.ManagedDocuments;
+import org.rri.ideals.server.MyLanguageClient;
+import org.rri.ideals.server.scheduling.RequestPriority;
+import org.rri.ideals.server.scheduling.RequestScheduler;
+import org.rri.ideals.server.util.LargeFileMode;
 import org.rri.ideals.server.util.Metrics;
 import org.rri.ideals.server.util.MiscUtil;
 
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 class DiagnosticsTask implements Runnable {
@@ -69,58 +82,222 @@ class DiagnosticsTask implements Runnable {
 
   @Override
   public void run() {
+    // the task could have been waiting in the queue while the document was changed
+    if (session.isOutdated()) {
+      return;
+    }
+
+    // the changes typed during the debounce delay are committed at once
+    file.getProject().getService(ManagedDocuments.class).commitDocument(path);
+
+    // the sessions asking for the diagnostics themselves get them by textDocument/diagnostic
+    final var clients = LspContext.getContexts(file.getProject(), path).stream()
+        .filter(it -> !it.isPullDiagnosticsSupported())
+        .map(LspContext::getClient)
+        .toList();
+
+    // e.g. after saving or indexing, nothing may have changed since the last analysis
+    final var diagnosticsService = file.getProject().getService(DiagnosticsService.class);
+    final var cacheKey = ReadAction.compute(() -> diagnosticsService.computeCacheKey(path, document));
+    final var cached = diagnosticsService.getCachedResult(path, cacheKey);
+    if (cached != null) {
+      session.getQuickFixRegistry().registerAll(cached.quickFixes());
+      if (!session.isOutdated()) {
+        session.getQuickFixRegistry().markComplete();
+      }
+      publish(clients, cached.diagnostics());
+      return;
+    }
+
     String token = toString();
 
-    var client = LspContext.getContext(file.getProject()).getClient();
+    beginProgress(clients, token);
 
-    client.createProgress(new WorkDoneProgressCreateParams(Either.forLeft(token))).join();
-    final var progressBegin = new WorkDoneProgressBegin();
-    progressBegin.setTitle("Analyzing file...");
-    progressBegin.setCancellable(false);
-    progressBegin.setPercentage(0);
-    client.notifyProgress(new ProgressParams(Either.forLeft(token), Either.forLeft(progressBegin)));
+    final var startedAt = System.nanoTime();
+    final boolean visibleFirst;
+    try {
+      visibleFirst = analyzeVisibleRange(clients, diagnosticsService);
+    } catch (RuntimeException e) {
+      endProgress(clients, token);
+      throw e;
+    }
+    if (!visibleFirst) {
+      analyzeFile(clients, token, cacheKey, false, 0);
+      return;
+    }
+
+    // the rest of the file waits for the requests of higher priorities, like any other background work
+    final var spentOnVisible = System.nanoTime() - startedAt;
+    RequestScheduler.getInstance().executor(RequestPriority.BACKGROUND)
+        .execute(() -> analyzeFile(clients, token, cacheKey, true, spentOnVisible));
+  }
+
+  /**
+   * Analyzes the part of the document shown in the client's editors and publishes its problems along with
+   * the problems published before outside of it.
+   *
+   * @return {@code false} if the visible part is unknown or covers the whole document
+   */
+  private boolean analyzeVisibleRange(@NotNull List<MyLanguageClient> clients,
+                                      @NotNull DiagnosticsService diagnosticsService) {
+    final var visibleRanges = file.getProject().getService(ManagedDocuments.class).getVisibleRanges(path);
+    if (visibleRanges.isEmpty()) {
+      return false;
+    }
+    final var lastLine = ReadAction.compute(() -> Math.max(0, document.getLineCount() - 1));
+    final var startLine = Math.min(lastLine, visibleRanges.stream().mapToInt(it -> it.getStart().getLine()).min().orElse(0));
+    final var endLine = Math.min(lastLine, visibleRanges.stream().mapToInt(it -> it.getEnd().getLine()).max().orElse(lastLine));
+    if (startLine == 0 && endLine == lastLine) {
+      return false;
+    }
+
+    final var range = ReadAction.compute(
+        () -> new ProperTextRange(document.getLineStartOffset(startLine), document.getLineEndOffset(endLine)));
+    final var infos = Metrics.call(
+        () -> "Analyzing visible range of file: " + file.getVirtualFile(),
+        () -> runWithProgress(progress -> runPassesInRange(file, document, range, progress, null))
+    );
+    if (!session.isOutdated()) {
+      final var diags = new ArrayList<>(toDiagnostics(infos));
+      diags.addAll(diagnosticsService.getPreviousDiagnosticsOutside(path, startLine, endLine));
+      publish(clients, diags);
+    }
+    return true;
+  }
 
+  /**
+   * Analyzes the whole document and publishes its problems.
+   *
+   * @param visibleShown whether the problems of the visible part of the document have been published already
+   * @param spentNanos   the time already spent on the analysis of the visible part of the document
+   */
+  private void analyzeFile(@NotNull List<MyLanguageClient> clients,
+                           @NotNull String token,
+                           @NotNull String cacheKey,
+                           boolean visibleShown,
+                           long spentNanos) {
+    final var diagnosticsService = file.getProject().getService(DiagnosticsService.class);
     try {
-      var diags = getHighlights(file, document).stream()
-          .map(it -> toDiagnostic(it, document, session.getQuickFixRegistry()))
-          .filter(Objects::nonNull)
-          .collect(Collectors.toList());
-      client.publishDiagnostics(new PublishDiagnosticsParams(path.toLspUri(), diags));
+      // the visible part could have been analyzed by an outdated task
+      if (session.isOutdated()) {
+        return;
+      }
+      final var startedAt = System.nanoTime();
+      // the syntax errors are shown without waiting for the inspections, unless the visible part is shown already
+      var diags = computeDiagnostics(visibleShown ? null : partial -> {
+        if (!session.isOutdated()) {
+          // the problems found last time outside the changed text stay shown until the inspections are run again
+          publish(clients, union(partial, diagnosticsService.getPreviousDiagnostics(path)));
+        }
+      });
+      diagnosticsService.recordAnalysis(path, spentNanos + System.nanoTime() - startedAt);
+      // before publishing, so that the client can ask for the quick fixes of the published diagnostics right away
+      if (!session.isOutdated()) {
+        session.getQuickFixRegistry().markComplete();
+        diagnosticsService.cacheResult(path,
+            new DiagnosticsService.CachedResult(cacheKey, diags, session.getQuickFixRegistry()));
+      }
+      publish(clients, diags);
     } finally {
-      client.notifyProgress(new ProgressParams(Either.forLeft(token), Either.forLeft(new WorkDoneProgressEnd())));
+      endProgress(clients, token);
+    }
+  }
+
+  @NotNull
+  private static List<Diagnostic> union(@NotNull List<Diagnostic> current, @NotNull List<Diagnostic> previous) {
+    final var result = new LinkedHashSet<>(current);
+    result.addAll(previous);
+    return new ArrayList<>(result);
+  }
+
+  private void publish(@NotNull List<MyLanguageClient> clients, @NotNull List<Diagnostic> diagnostics) {
+    final var params = new PublishDiagnosticsParams(path.toLspUri(), diagnostics);
+    clients.forEach(client -> client.publishDiagnostics(params));
+  }
+
+  private static void beginProgress(@NotNull List<MyLanguageClient> clients, @NotNull String token) {
+    for (var client : clients) {
+      client.createProgress(new WorkDoneProgressCreateParams(Either.forLeft(token))).join();
+      final var progressBegin = new WorkDoneProgressBegin();
+      progressBegin.setTitle("Analyzing file...");
+      progressBegin.setCancellable(false);
+      progressBegin.setPercentage(0);
+      client.notifyProgress(new ProgressParams(Either.forLeft(token), Either.forLeft(progressBegin)));
     }
   }
 
+  private static void endProgress(@NotNull List<MyLanguageClient> clients, @NotNull String token) {
+    clients.forEach(client ->
+        client.notifyProgress(new ProgressParams(Either.forLeft(token), Either.forLeft(new WorkDoneProgressEnd()))));
+  }
+
+  /**
+   * Analyzes the committed document and registers the quick fixes of the found problems.
+   */
+  @NotNull
+  List<Diagnostic> computeDiagnostics() {
+    return computeDiagnostics(null);
+  }
+
+  /**
+   * @param partialResults receives the results of the parser and annotators before the inspections are run
+   */
+  @NotNull
+  List<Diagnostic> computeDiagnostics(@Nullable Consumer<@NotNull List<Diagnostic>> partialResults) {
+    return toDiagnostics(getHighlights(file, document,
+        partialResults != null ? infos -> partialResults.accept(toDiagnostics(infos)) : null));
+  }
+
+  @NotNull
+  private List<Diagnostic> toDiagnostics(@NotNull Collection<HighlightInfo> infos) {
+    return infos.stream()
+        .map(it -> toDiagnostic(it, document, session.getQuickFixRegistry()))
+        .filter(Objects::nonNull)
+        .collect(Collectors.toList());
+  }
+
   @NotNull
-  private List<HighlightInfo> getHighlights(@NotNull PsiFile file, @NotNull Document doc) {
+  private Collection<HighlightInfo> getHighlights(@NotNull PsiFile file,
+                                                  @NotNull Document doc,
+                                                  @Nullable Consumer<@NotNull Collection<HighlightInfo>> partialResults) {
     return Metrics.call(
         () -> "Analyzing file: " + file.getVirtualFile(),
-        () -> doHighlighting(doc, file)
+        () -> doHighlighting(doc, file, partialResults)
     );
   }
 
   @SuppressWarnings("UnstableApiUsage")
   @NotNull
-  private List<HighlightInfo> doHighlighting(@NotNull Document doc, @NotNull PsiFile psiFile) {
-
-    var progress = new DaemonProgressIndicator();
+  private Collection<HighlightInfo> doHighlighting(@NotNull Document doc,
+                                                   @NotNull PsiFile psiFile,
+                                                   @Nullable Consumer<@NotNull Collection<HighlightInfo>> partialResults) {
 
     var project = psiFile.getProject();
 
-    return ProgressManager.getInstance().runProcess(() -> {
+    return runWithProgress(progress -> {
+      // ensure we get fresh results
+      //PsiDocumentManager.getInstance(document).commitAllDocuments() // TODO do we really need this?
+      if (LargeFileMode.isLargeFile(doc)) {
+        final var range = ReadAction.compute(
+            () -> project.getService(DiagnosticsService.class).getLargeFileAnalysisRange(path, doc));
+        final var result = runPassesInRange(psiFile, doc, range, progress, partialResults);
+        if (LOG.isTraceEnabled()) LOG.trace("Analyzing large file: produced items: " + result.size());
+        return result;
+      }
 
-      try {
-        // ensure we get fresh results
-        //PsiDocumentManager.getInstance(document).commitAllDocuments() // TODO do we really need this?
-        final var range = ProperTextRange.create(0, document.getTextLength());
+      final var result = runMainPasses(psiFile, doc, progress, partialResults);
+      if (LOG.isTraceEnabled()) LOG.trace("Analyzing file: produced items: " + result.size());
+      return result;
+    });
+  }
 
-        // this shouldn't be needed but for some reason the next call fails without it
-        HighlightingSessionImpl.runInsideHighlightingSession(psiFile, null, range, false, () -> {
-        });
+  @NotNull
+  private Collection<HighlightInfo> runWithProgress(@NotNull Function<@NotNull DaemonProgressIndicator, @NotNull Collection<HighlightInfo>> highlighting) {
+    var progress = session.createProgress();
 
-        final var result = DaemonCodeAnalyzerEx.getInstanceEx(project).runMainPasses(psiFile, doc, progress);
-        if (LOG.isTraceEnabled()) LOG.trace("Analyzing file: produced items: " + result.size());
-        return result;
+    return ProgressManager.getInstance().runProcess(() -> {
+      try {
+        return highlighting.apply(progress);
       } catch (IndexNotReadyException e) {
         LOG.warn("Analyzing file: index not ready");
         return Collections.emptyList();
@@ -133,10 +310,101 @@ class DiagnosticsTask implements Runnable {
 
         throw e;
       }
-
     }, progress);
   }
 
+  /**
+   * Runs the passes {@link DaemonCodeAnalyzerEx#runMainPasses} does for the whole document, the syntax and annotator
+   * passes first, so that their results can be reported before the inspections and the rest are run.
+   */
+  @SuppressWarnings("UnstableApiUsage")
+  @NotNull
+  private static Collection<HighlightInfo> runMainPasses(@NotNull PsiFile psiFile,
+                                                         @NotNull Document doc,
+                                                         @NotNull DaemonProgressIndicator progress,
+                                                         @Nullable Consumer<@NotNull Collection<HighlightInfo>> partialResults) {
+    final var range = ProperTextRange.create(0, doc.getTextLength());
+    final var general = new ArrayList<HighlightInfo>();
+    final var rest = new ArrayList<HighlightInfo>();
+    // the passes fail outside a highlighting session
+    HighlightingSessionImpl.runInsideHighlightingSession(psiFile, null, range, false, () -> {
+      final var passes = ReadAction.compute(() -> TextEditorHighlightingPassRegistrarEx.getInstanceEx(psiFile.getProject())
+          .instantiateMainPasses(psiFile, doc, HighlightInfoProcessor.getEmpty()));
+      for (var pass : passes) {
+        if (pass instanceof GeneralHighlightingPass) {
+          ReadAction.run(() -> pass.collectInformation(progress));
+          general.addAll(pass.getInfos());
+        }
+      }
+      if (partialResults != null) {
+        partialResults.accept(merge(general, List.of()));
+      }
+
+      for (var pass : passes) {
+        if (!(pass instanceof GeneralHighlightingPass)) {
+          ReadAction.run(() -> pass.collectInformation(progress));
+          rest.addAll(pass.getInfos());
+        }
+      }
+    });
+    return merge(general, rest);
+  }
+
+  /**
+   * Runs the main passes (syntax, annotators and local inspections) for the given range only.
+   */
+  @SuppressWarnings("UnstableApiUsage")
+  @NotNull
+  private static Collection<HighlightInfo> runPassesInRange(@NotNull PsiFile psiFile,
+                                                            @NotNull Document doc,
+                                                            @NotNull ProperTextRange range,
+                                                            @NotNull DaemonProgressIndicator progress,
+                                                            @Nullable Consumer<@NotNull Collection<HighlightInfo>> partialResults) {
+    final var general = new ArrayList<HighlightInfo>();
+    HighlightingSessionImpl.runInsideHighlightingSession(psiFile, null, range, false,
+        () -> general.addAll(runGeneralPass(psiFile, doc, range, progress)));
+    if (partialResults != null) {
+      partialResults.accept(merge(general, List.of()));
+    }
+
+    final var inspections = new ArrayList<HighlightInfo>();
+    HighlightingSessionImpl.runInsideHighlightingSession(psiFile, null, range, false, () -> {
+      final var inspectionsPass = new LocalInspectionsPass(psiFile, doc, range.getStartOffset(), range.getEndOffset(),
+          range, true, HighlightInfoProcessor.getEmpty(), true);
+      ReadAction.run(() -> inspectionsPass.collectInformation(progress));
+      inspections.addAll(inspectionsPass.getInfos());
+    });
+    return merge(general, inspections);
+  }
+
+  /**
+   * Runs the syntax and annotator pass; must be called inside a highlighting session.
+   */
+  @SuppressWarnings("UnstableApiUsage")
+  @NotNull
+  private static List<HighlightInfo> runGeneralPass(@NotNull PsiFile psiFile,
+                                                    @NotNull Document doc,
+                                                    @NotNull ProperTextRange range,
+                                                    @NotNull DaemonProgressIndicator progress) {
+    final var generalPass = new GeneralHighlightingPass(psiFile, doc, range.getStartOffset(), range.getEndOffset(),
+        true, range, null, HighlightInfoProcessor.getEmpty());
+    ReadAction.run(() -> generalPass.collectInformation(progress));
+    return generalPass.getInfos();
+  }
+
+  /**
+   * @return the union of the results of the passes, the same problem reported by several passes is kept once
+   */
+  @NotNull
+  private static Collection<HighlightInfo> merge(@NotNull Collection<HighlightInfo> first,
+                                                 @NotNull Collection<HighlightInfo> second) {
+    final var result = new LinkedHashMap<List<Object>, HighlightInfo>();
+    for (var info : ContainerUtil.concat(first, second)) {
+      result.putIfAbsent(Arrays.asList(info.getStartOffset(), info.getEndOffset(), info.getSeverity(), info.getDescription()), info);
+    }
+    return result.values();
+  }
+
   @NotNull
   private static DiagnosticSeverity diagnosticSeverity(@NotNull HighlightSeverity severity) {
     var result = severityMap.get(severity);
@@ -3,18 +3,25 @@ package org.rri.ideals.server.diagnostics;
 import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
 import com.intellij.psi.PsiFile;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.concurrent.ScheduledFuture;
 
 final class FileDiagnosticsState {
   private final @NotNull PsiFile file;
   private final @NotNull QuickFixRegistry quickFixes;
+  // the latest complete registry of the previous runs, used until this run is complete
+  private final @Nullable QuickFixRegistry previousQuickFixes;
   private final @NotNull ScheduledFuture<?> task;
 
-  public FileDiagnosticsState(@NotNull PsiFile file, @NotNull QuickFixRegistry quickFixes, @NotNull ScheduledFuture<?> task) {
+  public FileDiagnosticsState(@NotNull PsiFile file,
+                              @NotNull QuickFixRegistry quickFixes,
+                              @Nullable QuickFixRegistry previousQuickFixes,
+                              @NotNull ScheduledFuture<?> task) {
     this.file = file;
     this.task = task;
     this.quickFixes = quickFixes;
+    this.previousQuickFixes = previousQuickFixes;
   }
 
   void halt() {
@@ -27,4 +34,11 @@ final class FileDiagnosticsState {
   public @NotNull QuickFixRegistry getQuickFixes() {
     return quickFixes;
   }
+
+  /**
+   * @return the registry of this run if it is complete, the latest complete one of the previous runs otherwise
+   */
+  public @Nullable QuickFixRegistry getCompleteQuickFixes() {
+    return quickFixes.isComplete() ? quickFixes : previousQuickFixes;
+  }
 }
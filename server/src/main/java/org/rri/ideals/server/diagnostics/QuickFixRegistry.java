@@ -4,9 +4,12 @@ import com.intellij.codeInsight.daemon.impl.HighlightInfo;
 import org.eclipse.lsp4j.Position;
 import org.eclipse.lsp4j.Range;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rri.ideals.server.EditJournal;
 
 import java.util.Comparator;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
@@ -16,17 +19,44 @@ class QuickFixRegistry {
 
   private final ConcurrentHashMap<Anchor, List<HighlightInfo.IntentionActionDescriptor>> quickFixes = new ConcurrentHashMap<>();
 
+  // the version of the document the anchors refer to
+  @Nullable
+  private final Integer version;
+
+  private volatile boolean complete;
+
+  QuickFixRegistry(@Nullable Integer version) {
+    this.version = version;
+  }
+
+  @Nullable
+  public Integer getVersion() {
+    return version;
+  }
+
+  /**
+   * @param journal the journal to shift the anchors to the given version of the document with
+   */
   @NotNull
-  public List<HighlightInfo.IntentionActionDescriptor> collectForRange(@NotNull Range range) {
+  public List<HighlightInfo.IntentionActionDescriptor> collectForRange(@NotNull Range range,
+                                                                      @Nullable EditJournal journal,
+                                                                      @Nullable Integer currentVersion) {
+    final var sameVersion = Objects.equals(version, currentVersion);
+    if (!sameVersion && journal == null) {
+      return List.of();
+    }
 
     // simplistic implementation with full scan
     // on the expected amounts it seems fast enough
     return quickFixes.entrySet()
         .stream()
-        .filter( it ->
-            POSITION_COMPARATOR.compare(range.getStart(), it.getKey().range.getStart()) >= 0 &&
-            POSITION_COMPARATOR.compare(range.getEnd(), it.getKey().range.getEnd()) <= 0
-        )
+        .filter(it -> {
+          // the anchors whose text has been changed since are dropped
+          final var anchor = sameVersion ? it.getKey().range : journal.mapRange(it.getKey().range, version, currentVersion);
+          return anchor != null &&
+              POSITION_COMPARATOR.compare(range.getStart(), anchor.getStart()) >= 0 &&
+              POSITION_COMPARATOR.compare(range.getEnd(), anchor.getEnd()) <= 0;
+        })
         .flatMap(it -> it.getValue().stream())
         .collect(Collectors.toList());
   }
@@ -35,6 +65,24 @@ class QuickFixRegistry {
     quickFixes.put(new Anchor(range), actions);
   }
 
+  /**
+   * Registers the quick fixes of the given registry computed for the same text of the document.
+   */
+  public void registerAll(@NotNull QuickFixRegistry other) {
+    quickFixes.putAll(other.quickFixes);
+  }
+
+  /**
+   * Marks that all the quick fixes of the document version have been registered.
+   */
+  public void markComplete() {
+    complete = true;
+  }
+
+  public boolean isComplete() {
+    return complete;
+  }
+
   private record Anchor(@NotNull Range range) {
   }
 }
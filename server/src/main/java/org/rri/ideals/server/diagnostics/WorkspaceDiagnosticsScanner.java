@@ -0,0 +1,498 @@
+package org.rri.ideals.server.diagnostics;
+
+import com.intellij.codeInsight.daemon.impl.DaemonProgressIndicator;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationListener;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.search.PsiSearchHelper;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.PublishDiagnosticsParams;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
+import org.rri.ideals.server.LspContext;
+import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.ManagedDocuments;
+import org.rri.ideals.server.scheduling.RequestPriority;
+import org.rri.ideals.server.scheduling.RequestScheduler;
+import org.rri.ideals.server.util.Metrics;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Analyzes the source files nobody has open, so that the problems caused by a change (e.g. a refactoring) are
+ * reported without running a build. Enabled by {@code ideals.workspaceDiagnostics}.
+ * <p>
+ * A scan of all the source files starts {@code ideals.workspaceDiagnostics.delay} milliseconds after the latest
+ * trigger (the project has been indexed, files have been changed externally). A saved document queues only the files
+ * which may depend on it. The files are queued in the running scan if there is one, so a trigger never throws away
+ * the work done. The files are analyzed one by one by {@code ideals.workspaceDiagnostics.threads} workers as
+ * background work and only in smart mode. An analysis is interrupted as soon as a request of a higher priority is
+ * scheduled or a write action starts, the file is queued again and the worker waits until the higher priority work
+ * is done. The results are published and kept across restarts in a {@link DiagnosticsStore}, so they are shown right
+ * away when the project is opened next time.
+ */
+@Service(Service.Level.PROJECT)
+public final class WorkspaceDiagnosticsScanner implements Disposable {
+  private static final Logger LOG = Logger.getInstance(WorkspaceDiagnosticsScanner.class);
+
+  private static final boolean ENABLED = Boolean.getBoolean("ideals.workspaceDiagnostics");
+  private static final int THREADS = Integer.getInteger("ideals.workspaceDiagnostics.threads", 1);
+  private static final long DELAY_MS = Long.getLong("ideals.workspaceDiagnostics.delay", 5000);
+  private static final long YIELD_MS = 100;
+
+  private static final AtomicLong SCANNED = new AtomicLong();
+  private static final AtomicLong QUEUED = new AtomicLong();
+
+  static {
+    Metrics.registerGauge("workspaceDiagnostics.scanned", SCANNED::get);
+    Metrics.registerGauge("workspaceDiagnostics.queued", QUEUED::get);
+  }
+
+  @NotNull
+  private final Project project;
+
+  @NotNull
+  private final DiagnosticsStore store;
+
+  // the files the non-empty diagnostics have been published for
+  private final Set<String> published = ConcurrentHashMap.newKeySet();
+
+  // the progresses of the running analyses
+  private final Set<ProgressIndicator> analyses = ConcurrentHashMap.newKeySet();
+
+  // the scanner is shared by the sessions of the project, the first one starts it
+  private final AtomicBoolean started = new AtomicBoolean();
+
+  private final CompletableFuture<Void> loaded = new CompletableFuture<>();
+
+  @Nullable
+  private volatile Scan currentScan;
+
+  // guarded by this
+  @Nullable
+  private ScheduledFuture<?> pendingScan;
+
+  private boolean disposed = false;  // guarded by this
+
+  private static final class Scan {
+    // guarded by this
+    private final ArrayDeque<VirtualFile> files = new ArrayDeque<>();
+    private final Set<VirtualFile> queued = new HashSet<>();
+    private int activeWorkers = 0;
+    private boolean finished = false;
+
+    /**
+     * @return the number of workers to start for the added files; -1 if the scan is finished and can't take them
+     */
+    synchronized int offer(@NotNull Collection<VirtualFile> added) {
+      if (finished) {
+        return -1;
+      }
+      for (var file : added) {
+        if (queued.add(file)) {
+          files.add(file);
+        }
+      }
+      QUEUED.set(files.size());
+      final var idle = Math.max(0, Math.min(THREADS - activeWorkers, files.size()));
+      activeWorkers += idle;
+      return idle;
+    }
+
+    /**
+     * @return the next file to analyze; {@code null} if there are none, then the worker stops
+     */
+    @Nullable
+    synchronized VirtualFile poll() {
+      final var file = files.poll();
+      if (file != null) {
+        queued.remove(file);
+        QUEUED.set(files.size());
+        return file;
+      }
+      finished = --activeWorkers == 0;
+      return null;
+    }
+
+    synchronized boolean isFinished() {
+      return finished;
+    }
+  }
+
+  public WorkspaceDiagnosticsScanner(@NotNull Project project) {
+    this.project = project;
+    this.store = new DiagnosticsStore(
+        Path.of(PathManager.getSystemPath(), "ideals", "diagnostics", project.getLocationHash() + ".json"));
+    if (ENABLED) {
+      RequestScheduler.getInstance().addPreemptionListener(RequestPriority.BACKGROUND, this::interruptAnalyses, this);
+      ApplicationManager.getApplication().addApplicationListener(new ApplicationListener() {
+        @Override
+        public void beforeWriteActionStart(@NotNull Object action) {
+          interruptAnalyses();
+        }
+      }, this);
+    }
+  }
+
+  private void interruptAnalyses() {
+    analyses.forEach(ProgressIndicator::cancel);
+  }
+
+  /**
+   * The problems of an opened document come from its own analysis from now on. A client pulling them would show
+   * the ones published by the scan as well, so they are cleared for it.
+   */
+  public void documentOpened(@NotNull LspPath path, @NotNull LspContext context) {
+    final var uri = path.toLspUri();
+    if (context.isPullDiagnosticsSupported() && published.contains(uri)) {
+      context.getClient().publishDiagnostics(new PublishDiagnosticsParams(uri, List.of()));
+    }
+  }
+
+  /**
+   * Publishes the stored results which are still valid to the session and, for the first session of the project,
+   * scans the project once it's indexed.
+   */
+  public void start(@NotNull LspContext context) {
+    if (!ENABLED) {
+      return;
+    }
+    if (!started.compareAndSet(false, true)) {
+      // the project is shared with another session which has started the scanner already
+      loaded.thenRunAsync(() -> publishStored(List.of(context)), AppExecutorUtil.getAppExecutorService());
+      return;
+    }
+    AppExecutorUtil.getAppExecutorService().execute(() -> {
+      store.load();
+      loaded.complete(null);
+      publishStored(LspContext.getContexts(project));
+      DumbService.getInstance(project).smartInvokeLater(this::scheduleScan);
+    });
+  }
+
+  public void scheduleScan() {
+    if (!ENABLED) {
+      return;
+    }
+    synchronized (this) {
+      if (pendingScan != null) {
+        pendingScan.cancel(false);
+      }
+      pendingScan = AppExecutorUtil.getAppScheduledExecutorService().schedule(this::scan, DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Queues the files which may depend on the saved document: the ones mentioning the name of its file, like the name
+   * of a class or a module.
+   */
+  public void fileSaved(@NotNull LspPath path) {
+    // the files are queued by the first scan anyway
+    if (!ENABLED || !loaded.isDone()) {
+      return;
+    }
+    final var file = path.findVirtualFile();
+    if (file == null) {
+      return;
+    }
+    AppExecutorUtil.getAppExecutorService().execute(() -> {
+      if (!project.isDisposed()) {
+        rescan(DumbService.getInstance(project).runReadActionInSmartMode(() -> findDependents(file)));
+      }
+    });
+  }
+
+  @Override
+  public void dispose() {
+    synchronized (this) {
+      disposed = true;
+      if (pendingScan != null) {
+        pendingScan.cancel(false);
+      }
+      currentScan = null;
+    }
+    store.save();
+  }
+
+  private void scan() {
+    if (project.isDisposed() || !loaded.isDone()) {
+      return;
+    }
+    final var files = ReadAction.compute(this::collectSourceFiles);
+    forgetRemoved(files);
+    LOG.info("Scanning workspace: " + files.size() + " files in " + project);
+    rescan(files);
+  }
+
+  /**
+   * Queues the files in the running scan, the ones analyzed by it already are analyzed again; starts a new scan
+   * if none is running.
+   */
+  synchronized void rescan(@NotNull Collection<VirtualFile> files) {
+    if (disposed || project.isDisposed()) {
+      return;
+    }
+    final var running = currentScan;
+    if (running == null || !enqueue(running, files)) {
+      final var scan = new Scan();
+      currentScan = scan;
+      enqueue(scan, files);
+    }
+  }
+
+  /**
+   * @return {@code false} if the scan is finished and can't take the files
+   */
+  private boolean enqueue(@NotNull Scan scan, @NotNull Collection<VirtualFile> files) {
+    final var workers = scan.offer(files);
+    for (int i = 0; i < workers; i++) {
+      scheduleNext(scan);
+    }
+    return workers >= 0;
+  }
+
+  @NotNull
+  private List<VirtualFile> collectSourceFiles() {
+    final var index = ProjectFileIndex.getInstance(project);
+    final var result = new ArrayList<VirtualFile>();
+    index.iterateContent(file -> {
+      if (isSourceFile(index, file)) {
+        result.add(file);
+      }
+      return true;
+    });
+    return result;
+  }
+
+  @NotNull
+  private List<VirtualFile> findDependents(@NotNull VirtualFile file) {
+    if (!file.isValid()) {
+      return List.of();
+    }
+    final var index = ProjectFileIndex.getInstance(project);
+    final var result = new ArrayList<VirtualFile>();
+    PsiSearchHelper.getInstance(project).processAllFilesWithWord(file.getNameWithoutExtension(),
+        GlobalSearchScope.projectScope(project), psiFile -> {
+          final var dependent = psiFile.getVirtualFile();
+          if (dependent != null && !dependent.equals(file) && isSourceFile(index, dependent)) {
+            result.add(dependent);
+          }
+          return true;
+        }, true);
+    return result;
+  }
+
+  private static boolean isSourceFile(@NotNull ProjectFileIndex index, @NotNull VirtualFile file) {
+    return !file.isDirectory() && index.isInSourceContent(file) && !file.getFileType().isBinary();
+  }
+
+  /**
+   * The files deleted or excluded since the previous scan keep neither the published problems nor the stored ones.
+   */
+  private void forgetRemoved(@NotNull List<VirtualFile> files) {
+    final var uris = files.stream()
+        .map(file -> LspPath.fromVirtualFile(file).toLspUri())
+        .collect(Collectors.toSet());
+    store.retain(uris);
+    for (var uri : List.copyOf(published)) {
+      if (!uris.contains(uri) && published.remove(uri) && !isOpen(LspPath.fromLspUri(uri))) {
+        publish(new PublishDiagnosticsParams(uri, List.of()));
+      }
+    }
+  }
+
+  private boolean isOutdated(@NotNull Scan scan) {
+    return scan != currentScan || project.isDisposed();
+  }
+
+  private void scheduleNext(@NotNull Scan scan) {
+    RequestScheduler.getInstance().executor(RequestPriority.BACKGROUND).execute(() -> scanNext(scan));
+  }
+
+  private void scheduleLater(@NotNull Scan scan) {
+    AppExecutorUtil.getAppScheduledExecutorService().schedule(() -> scheduleNext(scan), YIELD_MS, TimeUnit.MILLISECONDS);
+  }
+
+  private void scanNext(@NotNull Scan scan) {
+    if (isOutdated(scan)) {
+      return;
+    }
+    if (RequestScheduler.getInstance().hasWorkAbove(RequestPriority.BACKGROUND)) {
+      // the requests the user is waiting for go first
+      scheduleLater(scan);
+      return;
+    }
+    if (DumbService.isDumb(project)) {
+      // the results computed while indexing are incomplete
+      DumbService.getInstance(project).runWhenSmart(() -> scheduleNext(scan));
+      return;
+    }
+
+    final var file = scan.poll();
+    if (file == null) {
+      if (scan.isFinished()) {
+        LOG.info("Workspace scan finished: " + project);
+        store.save();
+      }
+      return;
+    }
+
+    var interrupted = false;
+    try {
+      analyze(scan, file);
+    } catch (ProcessCanceledException e) {
+      // the file has been queued again unless the scan is outdated
+      interrupted = true;
+    } finally {
+      if (interrupted) {
+        scheduleLater(scan);
+      } else {
+        scheduleNext(scan);
+      }
+    }
+  }
+
+  private record Target(@NotNull DiagnosticsTask task, @NotNull String hash) {
+  }
+
+  private void analyze(@NotNull Scan scan, @NotNull VirtualFile file) {
+    final var path = LspPath.fromVirtualFile(file);
+    // the open documents are analyzed by DiagnosticsService
+    if (isOpen(path)) {
+      return;
+    }
+
+    final var progress = new DaemonProgressIndicator();
+    final var target = ReadAction.compute(() -> {
+      if (!file.isValid()) {
+        return null;
+      }
+      final var psiFile = PsiManager.getInstance(project).findFile(file);
+      final var document = FileDocumentManager.getInstance().getDocument(file);
+      if (psiFile == null || document == null) {
+        return null;
+      }
+      final var quickFixes = new QuickFixRegistry(null);
+      final var task = new DiagnosticsTask(path, psiFile, document, new DiagnosticSession() {
+        @Override
+        public @NotNull QuickFixRegistry getQuickFixRegistry() {
+          return quickFixes;
+        }
+
+        @Override
+        public boolean isOutdated() {
+          return WorkspaceDiagnosticsScanner.this.isOutdated(scan);
+        }
+
+        @Override
+        public void signalRestart() {
+          // interrupted in favor of more urgent work
+          enqueue(scan, List.of(file));
+        }
+
+        @Override
+        public @NotNull DaemonProgressIndicator createProgress() {
+          return progress;
+        }
+      });
+      return new Target(task, DiagnosticsStore.hash(document.getImmutableCharSequence()));
+    });
+    if (target == null) {
+      return;
+    }
+
+    final var dumbService = DumbService.getInstance(project);
+    final var dumbModeStamp = dumbService.getModificationTracker().getModificationCount();
+    final List<Diagnostic> diagnostics;
+    analyses.add(progress);
+    try {
+      diagnostics = target.task().computeDiagnostics();
+    } finally {
+      analyses.remove(progress);
+    }
+    if (dumbService.isDumb() || dumbService.getModificationTracker().getModificationCount() != dumbModeStamp) {
+      // indexing has started meanwhile, the results may be incomplete; the file waits for smart mode
+      enqueue(scan, List.of(file));
+      return;
+    }
+    SCANNED.incrementAndGet();
+    final var uri = path.toLspUri();
+    store.put(uri, target.hash(), diagnostics);
+
+    if (isOutdated(scan) || isOpen(path)) {
+      return;
+    }
+    if (diagnostics.isEmpty()) {
+      // only the problems published before need to be cleared
+      if (!published.remove(uri)) {
+        return;
+      }
+    } else {
+      published.add(uri);
+    }
+    publish(new PublishDiagnosticsParams(uri, diagnostics));
+  }
+
+  private void publishStored(@NotNull List<LspContext> contexts) {
+    store.forEach((uri, entry) -> {
+      final var path = LspPath.fromLspUri(uri);
+      final var file = path.findVirtualFile();
+      if (file == null || isOpen(path)) {
+        return;
+      }
+      final var hash = ReadAction.compute(() -> {
+        final var document = file.isValid() ? FileDocumentManager.getInstance().getDocument(file) : null;
+        return document != null ? DiagnosticsStore.hash(document.getImmutableCharSequence()) : null;
+      });
+      if (entry.hash.equals(hash)) {
+        published.add(uri);
+        final var params = new PublishDiagnosticsParams(uri, entry.diagnostics);
+        contexts.forEach(it -> it.getClient().publishDiagnostics(params));
+      }
+    });
+  }
+
+  // nobody has the file open, so all the sessions of the project get its problems
+  private void publish(@NotNull PublishDiagnosticsParams params) {
+    LspContext.getContexts(project).forEach(it -> it.getClient().publishDiagnostics(params));
+  }
+
+  @TestOnly
+  @Nullable
+  List<Diagnostic> getStoredDiagnostics(@NotNull LspPath path) {
+    final var entry = store.get(path.toLspUri());
+    return entry != null ? entry.diagnostics : null;
+  }
+
+  private boolean isOpen(@NotNull LspPath path) {
+    return project.getService(ManagedDocuments.class).getSnapshot(path) != null;
+  }
+}
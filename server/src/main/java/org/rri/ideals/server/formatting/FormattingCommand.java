@@ -13,6 +13,7 @@ import org.eclipse.lsp4j.TextEdit;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.rri.ideals.server.commands.ExecutorContext;
+import org.rri.ideals.server.util.LargeFileMode;
 import org.rri.ideals.server.util.MiscUtil;
 import org.rri.ideals.server.util.TextUtil;
 
@@ -43,6 +44,10 @@ final public class FormattingCommand extends FormattingCommandBase {
   protected List<? extends TextEdit> execute(@NotNull ExecutorContext context) {
     // create reformat results
     LOG.info(getMessageSupplier().get());
+    if (lspRange == null && LargeFileMode.isLargeFile(context.getPsiFile().getTextLength())) {
+      LOG.info("Whole document formatting is declined for a large file: " + context.getPsiFile().getVirtualFile());
+      return List.of();
+    }
     return TextUtil.differenceAfterAction(
         context.getPsiFile(),
         (copy) -> reformatPsiFile(context, copy));
@@ -55,22 +60,24 @@ final public class FormattingCommand extends FormattingCommandBase {
             context.getProject(),
             () -> doWithTemporaryCodeStyleSettingsForFile(
                 psiFile,
-                () -> doReformat(psiFile, getConfiguredTextRange(psiFile))),
+                () -> doReformat(psiFile, getConfiguredTextRange(context, psiFile))),
             // this name is necessary for ideas blackbox TextRange formatting
             CodeStyleBundle.message("process.reformat.code"),
             null);
 
-    assert context.getCancelToken() != null;
     context.getCancelToken().checkCanceled();
   }
 
   @NotNull
-  private TextRange getConfiguredTextRange(@NotNull PsiFile psiFile) {
+  private TextRange getConfiguredTextRange(@NotNull ExecutorContext context, @NotNull PsiFile psiFile) {
     var doc = MiscUtil.getDocument(psiFile);
     assert doc != null;
     TextRange textRange;
     if (lspRange != null) {
-      textRange = TextUtil.toTextRange(doc, lspRange);
+      // the copy has the same text as the request's snapshot
+      textRange = new TextRange(
+          context.positionToOffset(doc, lspRange.getStart()),
+          context.positionToOffset(doc, lspRange.getEnd()));
     } else {
       textRange = new TextRange(0, psiFile.getTextLength());
     }
@@ -82,10 +89,4 @@ final public class FormattingCommand extends FormattingCommandBase {
   protected Supplier<@NotNull String> getMessageSupplier() {
     return () -> "Format call";
   }
-
-  @Override
-  protected boolean isCancellable() {
-    return true;
-  }
-
 }
@@ -18,6 +18,7 @@ import org.eclipse.lsp4j.Position;
 import org.eclipse.lsp4j.TextEdit;
 import org.jetbrains.annotations.NotNull;
 import org.rri.ideals.server.commands.ExecutorContext;
+import org.rri.ideals.server.scheduling.RequestPriority;
 import org.rri.ideals.server.util.EditorUtil;
 import org.rri.ideals.server.util.MiscUtil;
 import org.rri.ideals.server.util.TextUtil;
@@ -45,8 +46,8 @@ public class OnTypeFormattingCommand extends FormattingCommandBase {
   }
 
   @Override
-  protected boolean isCancellable() {
-    return false;
+  protected @NotNull RequestPriority getPriority() {
+    return RequestPriority.INTERACTIVE;
   }
 
   @Override
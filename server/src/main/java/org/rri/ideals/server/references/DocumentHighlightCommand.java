@@ -51,15 +51,20 @@ public class DocumentHighlightCommand extends LspCommand<List<? extends Document
   }
 
   @Override
-  protected @NotNull Supplier<@NotNull String> getMessageSupplier() {
-    return () -> "DocumentHighlight call";
+  protected @NotNull Object getCoalescingKey() {
+    return pos;
   }
 
   @Override
-  protected boolean isCancellable() {
+  protected boolean requiresEdt() {
     return false;
   }
 
+  @Override
+  protected @NotNull Supplier<@NotNull String> getMessageSupplier() {
+    return () -> "DocumentHighlight call";
+  }
+
   @Override
   protected @NotNull List<? extends DocumentHighlight> execute(@NotNull ExecutorContext ctx) {
     var disposable = Disposer.newDisposable();
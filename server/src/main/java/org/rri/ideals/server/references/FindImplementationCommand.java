@@ -22,6 +22,12 @@ public class FindImplementationCommand extends FindDefinitionCommandBase {
     return () -> "Implementation call";
   }
 
+  // ImplementationSearcher runs the search under a modal progress
+  @Override
+  protected boolean requiresEdt() {
+    return true;
+  }
+
   @Override
   protected @NotNull Stream<PsiElement> findDefinitions(@NotNull Editor editor, int offset) {
     final var element = TargetElementUtil.findTargetElement(editor, TargetElementUtil.getInstance().getAllAccepted());
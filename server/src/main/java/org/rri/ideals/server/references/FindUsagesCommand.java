@@ -10,8 +10,8 @@ import com.intellij.find.impl.FindManagerImpl;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.ui.DialogWrapper;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
@@ -35,9 +35,9 @@ import org.eclipse.lsp4j.Location;
 import org.eclipse.lsp4j.Position;
 import org.eclipse.lsp4j.jsonrpc.CancelChecker;
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Nullable;
 import org.rri.ideals.server.commands.ExecutorContext;
 import org.rri.ideals.server.commands.LspCommand;
+import org.rri.ideals.server.scheduling.RequestPriority;
 import org.rri.ideals.server.util.EditorUtil;
 import org.rri.ideals.server.util.MiscUtil;
 
@@ -45,7 +45,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.CancellationException;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -64,7 +63,17 @@ public class FindUsagesCommand extends LspCommand<List<? extends Location>> {
   }
 
   @Override
-  protected boolean isCancellable() {
+  protected @NotNull RequestPriority getPriority() {
+    return RequestPriority.BACKGROUND;
+  }
+
+  @Override
+  protected boolean requiresEdt() {
+    return false;
+  }
+
+  @Override
+  protected boolean isLongRunning() {
     return true;
   }
 
@@ -91,25 +100,22 @@ public class FindUsagesCommand extends LspCommand<List<? extends Location>> {
 
   private static @NotNull List<@NotNull Location> findUsages(@NotNull Project project,
                                                              @NotNull PsiElement target,
-                                                             @Nullable CancelChecker cancelToken) {
+                                                             @NotNull CancelChecker cancelToken) {
     var manager = ((FindManagerImpl) FindManager.getInstance(project)).getFindUsagesManager();
     var handler = manager.getFindUsagesHandler(target, FindUsagesHandlerFactory.OperationMode.USAGES_WITH_DEFAULT_OPTIONS);
     List<Location> result;
     if (handler != null) {
-      var dialog = handler.getFindUsagesDialog(false, false, false);
-      dialog.close(DialogWrapper.OK_EXIT_CODE);
-      var options = dialog.calcFindUsagesOptions();
+      // the same options the IDE uses when the usages are searched without showing the dialog
+      var options = handler.getFindUsagesOptions(null);
       PsiElement[] primaryElements = handler.getPrimaryElements();
       PsiElement[] secondaryElements = handler.getSecondaryElements();
       UsageSearcher searcher = createUsageSearcher(primaryElements, secondaryElements, handler, options, project);
       Set<Location> saver = ContainerUtil.newConcurrentSet();
       searcher.generate(usage -> {
-        if (cancelToken != null) {
-          try {
-            cancelToken.checkCanceled();
-          } catch (CancellationException e) {
-            return false;
-          }
+        // a cancelled search must not look like a complete one, so the cancellation is propagated
+        ProgressManager.checkCanceled();
+        if (cancelToken.isCanceled()) {
+          throw new ProcessCanceledException();
         }
         if (usage instanceof final UsageInfo2UsageAdapter ui2ua && !ui2ua.isNonCodeUsage()) {
           var elem = ui2ua.getElement();
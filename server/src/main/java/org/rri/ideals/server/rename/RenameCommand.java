@@ -39,11 +39,6 @@ public class RenameCommand extends LspCommand<WorkspaceEdit> {
     return () -> "Rename call";
   }
 
-  @Override
-  protected boolean isCancellable() {
-    return false;
-  }
-
   @Override
   protected @Nullable WorkspaceEdit execute(@NotNull ExecutorContext ctx) {
     final var file = ctx.getPsiFile();
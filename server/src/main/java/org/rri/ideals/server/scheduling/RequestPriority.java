@@ -0,0 +1,21 @@
+package org.rri.ideals.server.scheduling;
+
+/**
+ * Priority classes of the work scheduled by {@link RequestScheduler}, from the highest to the lowest.
+ */
+public enum RequestPriority {
+  /**
+   * Requests the user waits for while typing: completion, signature help, on-type formatting.
+   */
+  INTERACTIVE,
+
+  /**
+   * Requests explicitly invoked by the user: navigation, highlighting, formatting, renaming, etc.
+   */
+  NORMAL,
+
+  /**
+   * Long-running work the user doesn't wait for immediately: diagnostics, find usages, workspace symbols.
+   */
+  BACKGROUND
+}
@@ -0,0 +1,209 @@
+package org.rri.ideals.server.scheduling;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.rri.ideals.server.util.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the requests on the application pool, prioritizing them by {@link RequestPriority}.
+ * <p>
+ * At most {@code ideals.scheduler.threads} tasks run at the same time. When a slot is freed, it's given to
+ * the oldest task of the highest priority class, so interactive requests jump ahead of queued background work.
+ * Besides, each class has its own concurrency limit ({@code ideals.scheduler.<class>.limit}),
+ * so background work can never occupy all the slots (and compete with interactive requests for EDT).
+ * <p>
+ * The number of queued and running tasks and the time spent in the queue are exposed as {@link Metrics} gauges.
+ */
+@Service(Service.Level.APP)
+public final class RequestScheduler {
+  private static final Logger LOG = Logger.getInstance(RequestScheduler.class);
+
+  private static final int THREADS = Integer.getInteger("ideals.scheduler.threads",
+      Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+  @NotNull
+  private final Executor delegate;
+
+  private final int threads;
+
+  // iterated in the order of priority
+  @NotNull
+  private final Map<RequestPriority, PriorityClass> classes = new EnumMap<>(RequestPriority.class);
+
+  private int running = 0;  // guarded by this
+
+  @NotNull
+  private final List<Preemption> preemptions = new CopyOnWriteArrayList<>();
+
+  public RequestScheduler() {
+    this(AppExecutorUtil.getAppExecutorService(), THREADS);
+  }
+
+  RequestScheduler(@NotNull Executor delegate, int threads) {
+    this.delegate = delegate;
+    this.threads = threads;
+    for (var priority : RequestPriority.values()) {
+      final var priorityClass = new PriorityClass(priority, threads);
+      classes.put(priority, priorityClass);
+
+      final var prefix = "scheduler." + priorityClass.name;
+      Metrics.registerGauge(prefix + ".queued", () -> priorityClass.queuedCount);
+      Metrics.registerGauge(prefix + ".running", () -> priorityClass.runningCount);
+      Metrics.registerGauge(prefix + ".avgQueueTimeMs", priorityClass::getAverageQueueTimeMs);
+      Metrics.registerGauge(prefix + ".maxQueueTimeMs", () -> TimeUnit.NANOSECONDS.toMillis(priorityClass.maxQueueTime));
+    }
+  }
+
+  @NotNull
+  public static RequestScheduler getInstance() {
+    return ApplicationManager.getApplication().getService(RequestScheduler.class);
+  }
+
+  @NotNull
+  public Executor executor(@NotNull RequestPriority priority) {
+    final var priorityClass = classes.get(priority);
+    return task -> {
+      schedule(priorityClass, task);
+      notifyPreemptions(priority);
+    };
+  }
+
+  /**
+   * Calls the listener whenever work of a priority higher than the given one is scheduled, so that long-running
+   * low priority work can be interrupted at once instead of finishing its current step first.
+   */
+  public void addPreemptionListener(@NotNull RequestPriority priority,
+                                    @NotNull Runnable listener,
+                                    @NotNull Disposable parentDisposable) {
+    final var preemption = new Preemption(priority, listener);
+    preemptions.add(preemption);
+    Disposer.register(parentDisposable, () -> preemptions.remove(preemption));
+  }
+
+  private void notifyPreemptions(@NotNull RequestPriority scheduled) {
+    for (var preemption : preemptions) {
+      if (scheduled.compareTo(preemption.priority()) < 0) {
+        preemption.listener().run();
+      }
+    }
+  }
+
+  /**
+   * @return whether any work of a priority higher than the given one is queued or running; the low priority work
+   * consisting of many small tasks can yield to it
+   */
+  public boolean hasWorkAbove(@NotNull RequestPriority priority) {
+    for (var entry : classes.entrySet()) {
+      if (entry.getKey().compareTo(priority) >= 0) {
+        break;
+      }
+      if (entry.getValue().queuedCount > 0 || entry.getValue().runningCount > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private synchronized void schedule(@NotNull PriorityClass priorityClass, @NotNull Runnable task) {
+    priorityClass.queue.add(new QueuedTask(task, System.nanoTime()));
+    priorityClass.queuedCount++;
+    dispatch();
+  }
+
+  // must be called under the lock
+  private void dispatch() {
+    for (var priorityClass : classes.values()) {
+      while (running < threads && priorityClass.canStart()) {
+        final var queued = priorityClass.queue.poll();
+        assert queued != null;
+        priorityClass.queuedCount--;
+        priorityClass.runningCount++;
+        running++;
+        priorityClass.recordQueueTime(System.nanoTime() - queued.enqueuedAt());
+
+        delegate.execute(() -> runTask(priorityClass, queued.task()));
+      }
+    }
+  }
+
+  private void runTask(@NotNull PriorityClass priorityClass, @NotNull Runnable task) {
+    try {
+      task.run();
+    } catch (ProcessCanceledException ignored) {
+      // the task was cancelled, nothing to report
+    } catch (Throwable e) {
+      LOG.warn("Scheduled task failed: " + priorityClass.name, e);
+    } finally {
+      synchronized (this) {
+        priorityClass.runningCount--;
+        running--;
+        dispatch();
+      }
+    }
+  }
+
+  private record QueuedTask(@NotNull Runnable task, long enqueuedAt) {
+  }
+
+  private record Preemption(@NotNull RequestPriority priority, @NotNull Runnable listener) {
+  }
+
+  private static final class PriorityClass {
+    @NotNull
+    private final String name;
+    private final int limit;
+
+    @NotNull
+    private final ArrayDeque<QueuedTask> queue = new ArrayDeque<>();
+
+    // modified under the scheduler lock, read by the gauges without it
+    private volatile int queuedCount = 0;
+    private volatile int runningCount = 0;
+    private volatile long totalQueueTime = 0;
+    private volatile long maxQueueTime = 0;
+    private volatile long startedCount = 0;
+
+    private PriorityClass(@NotNull RequestPriority priority, int threads) {
+      this.name = priority.name().toLowerCase(Locale.ROOT);
+      this.limit = Integer.getInteger("ideals.scheduler." + name + ".limit", defaultLimit(priority, threads));
+    }
+
+    private static int defaultLimit(@NotNull RequestPriority priority, int threads) {
+      return switch (priority) {
+        case INTERACTIVE -> threads;
+        case NORMAL -> Math.max(1, threads / 2);
+        case BACKGROUND -> Math.max(1, threads / 4);
+      };
+    }
+
+    private boolean canStart() {
+      return runningCount < limit && !queue.isEmpty();
+    }
+
+    private void recordQueueTime(long nanos) {
+      totalQueueTime += nanos;
+      maxQueueTime = Math.max(maxQueueTime, nanos);
+      startedCount++;
+    }
+
+    private long getAverageQueueTimeMs() {
+      final var started = startedCount;
+      return started == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalQueueTime / started);
+    }
+  }
+}
@@ -28,6 +28,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.ManagedDocuments;
 import org.rri.ideals.server.util.EditorUtil;
 import org.rri.ideals.server.util.LspProgressIndicator;
 import org.rri.ideals.server.util.MiscUtil;
@@ -63,6 +64,7 @@ final public class SignatureHelpService implements Disposable {
         LOG.warn("file not found: " + path);
         return null;
       }
+      project.getService(ManagedDocuments.class).commitDocument(path);
       final var psiFile = MiscUtil.resolvePsiFile(project, path);
       assert psiFile != null;
       final var doc = ReadAction.compute(() -> MiscUtil.getDocument(psiFile));
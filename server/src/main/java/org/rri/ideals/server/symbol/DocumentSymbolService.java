@@ -27,12 +27,15 @@ import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.ManagedDocuments;
 import org.rri.ideals.server.symbol.util.SymbolUtil;
+import org.rri.ideals.server.util.LargeFileMode;
 import org.rri.ideals.server.util.LspProgressIndicator;
 import org.rri.ideals.server.util.MiscUtil;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.intellij.ide.actions.ViewStructureAction.createStructureViewModel;
 
@@ -51,6 +54,7 @@ final public class DocumentSymbolService {
       @NotNull LspPath path,
       @NotNull CancelChecker cancelChecker) {
     LOG.info("document symbol start");
+    project.getService(ManagedDocuments.class).commitDocument(path);
     final var psiFile = MiscUtil.resolvePsiFile(project, path);
     if (psiFile == null) {
       return List.of();
@@ -66,7 +70,9 @@ final public class DocumentSymbolService {
         Document document = ReadAction.compute(() -> MiscUtil.getDocument(psiFile));
         assert document != null;
 
-        var rootSymbol = processTree(root, psiFile, document);
+        // the tree of a large file is capped, the symbols are collected depth-first
+        var budget = new AtomicInteger(LargeFileMode.isLargeFile(document) ? LargeFileMode.getMaxSymbols() : Integer.MAX_VALUE);
+        var rootSymbol = processTree(root, psiFile, document, budget);
         if (rootSymbol == null) {
           return List.of();
         }
@@ -104,7 +110,11 @@ final public class DocumentSymbolService {
   @Nullable
   private DocumentSymbol processTree(@NotNull TreeElement root,
                                      @NotNull PsiFile psiFile,
-                                     @NotNull Document document) {
+                                     @NotNull Document document,
+                                     @NotNull AtomicInteger budget) {
+    if (budget.getAndDecrement() <= 0) {
+      return null;
+    }
 
     var documentSymbol = ReadAction.compute(() -> {
       var curSymbol = new DocumentSymbol();
@@ -135,7 +145,10 @@ final public class DocumentSymbolService {
     }
     var children = new ArrayList<DocumentSymbol>();
     for (TreeElement child : ReadAction.compute(root::getChildren)) {
-      var childSymbol = processTree(child, psiFile, document);
+      if (budget.get() <= 0) {
+        break;
+      }
+      var childSymbol = processTree(child, psiFile, document, budget);
       if (childSymbol != null) { // if not refers to another file
         children.add(childSymbol);
       }
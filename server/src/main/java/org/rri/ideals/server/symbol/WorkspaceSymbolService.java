@@ -19,7 +19,6 @@ import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiNameIdentifierOwner;
 import com.intellij.psi.search.ProjectScope;
 import com.intellij.psi.search.SearchScope;
-import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.containers.ContainerUtil;
 import org.eclipse.lsp4j.Location;
 import org.eclipse.lsp4j.SymbolInformation;
@@ -31,6 +30,8 @@ import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.scheduling.RequestPriority;
+import org.rri.ideals.server.scheduling.RequestScheduler;
 import org.rri.ideals.server.symbol.util.SymbolUtil;
 import org.rri.ideals.server.util.MiscUtil;
 
@@ -58,7 +59,7 @@ final public class WorkspaceSymbolService {
 
   @SuppressWarnings("deprecation")
   public @NotNull CompletableFuture<@NotNull Either<List<? extends SymbolInformation>, @Nullable List<? extends WorkspaceSymbol>>> runSearch(String pattern) {
-    return CompletableFutures.computeAsync(AppExecutorUtil.getAppExecutorService(),
+    return CompletableFutures.computeAsync(RequestScheduler.getInstance().executor(RequestPriority.BACKGROUND),
         cancelToken -> {
           if (DumbService.isDumb(project)) {
             return Either.forRight(null);
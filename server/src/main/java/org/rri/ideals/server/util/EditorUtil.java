@@ -2,10 +2,12 @@ package org.rri.ideals.server.util;
 
 import com.intellij.codeInsight.TargetElementUtil;
 import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.EditorFactory;
 import com.intellij.openapi.editor.LogicalPosition;
+import com.intellij.openapi.editor.impl.ImaginaryEditor;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
@@ -20,14 +22,24 @@ public class EditorUtil {
   private EditorUtil() {
   }
 
+  /**
+   * Creates a real editor on EDT. Outside EDT (e.g. in a background read action) creates an imaginary editor,
+   * which supports the document, the caret and the selection only, but doesn't need EDT.
+   */
   @NotNull
   public static Editor createEditor(@NotNull Disposable context,
                                     @NotNull PsiFile file,
                                     @NotNull Position position) {
     Document doc = MiscUtil.getDocument(file);
-    EditorFactory editorFactory = EditorFactory.getInstance();
-
     assert doc != null;
+
+    if (!ApplicationManager.getApplication().isDispatchThread()) {
+      Editor imaginary = new ImaginaryEditor(file.getProject(), doc);
+      imaginary.getCaretModel().moveToOffset(MiscUtil.positionToOffset(doc, position));
+      return imaginary;
+    }
+
+    EditorFactory editorFactory = EditorFactory.getInstance();
     Editor created = editorFactory.createEditor(doc, file.getProject());
     created.getCaretModel().moveToLogicalPosition(new LogicalPosition(position.getLine(), position.getCharacter()));
 
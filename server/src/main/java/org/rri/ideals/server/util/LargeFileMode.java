@@ -0,0 +1,66 @@
+package org.rri.ideals.server.util;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.util.ProperTextRange;
+import org.eclipse.lsp4j.Range;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Limits of the analysis of large (usually generated) files.
+ * <p>
+ * A file is large if its length exceeds {@code ideals.largeFile.threshold} characters. For large files
+ * <ul>
+ *   <li>diagnostics are computed for the {@code ideals.largeFile.analysisLines} lines around the part shown in the
+ *   client's editors only, or around the last change if the client doesn't report it;</li>
+ *   <li>the document symbol tree is capped at {@code ideals.largeFile.maxSymbols} symbols;</li>
+ *   <li>the whole document formatting is declined, range and on-type formatting work as usual;</li>
+ *   <li>the text changes made by formatting are diffed without the unchanged prefix and suffix.</li>
+ * </ul>
+ */
+public final class LargeFileMode {
+  private static final int THRESHOLD = Integer.getInteger("ideals.largeFile.threshold", 2_000_000);
+  private static final int ANALYSIS_LINES = Integer.getInteger("ideals.largeFile.analysisLines", 1000);
+  private static final int MAX_SYMBOLS = Integer.getInteger("ideals.largeFile.maxSymbols", 1000);
+
+  private LargeFileMode() {
+  }
+
+  public static boolean isLargeFile(@NotNull Document doc) {
+    return isLargeFile(doc.getTextLength());
+  }
+
+  public static boolean isLargeFile(int textLength) {
+    return textLength > THRESHOLD;
+  }
+
+  public static int getMaxSymbols() {
+    return MAX_SYMBOLS;
+  }
+
+  /**
+   * @param visibleRanges the ranges of the document shown in the client's editors; empty if unknown
+   * @param changedLine   the line of the last change, used if the visible ranges are unknown
+   * @return the range of {@code ideals.largeFile.analysisLines} lines centered at the visible part of the document
+   * (starting at it if it's longer) or at the changed line
+   */
+  @NotNull
+  public static ProperTextRange getAnalysisRange(@NotNull Document doc, @NotNull List<Range> visibleRanges, int changedLine) {
+    final var lineCount = Math.max(1, doc.getLineCount());
+    final int focusLine;
+    if (visibleRanges.isEmpty()) {
+      focusLine = changedLine;
+    } else {
+      final var visibleStart = visibleRanges.stream().mapToInt(it -> it.getStart().getLine()).min().orElse(0);
+      final var visibleEnd = visibleRanges.stream().mapToInt(it -> it.getEnd().getLine()).max().orElse(visibleStart);
+      focusLine = visibleEnd - visibleStart < ANALYSIS_LINES
+          ? (visibleStart + visibleEnd) / 2
+          : visibleStart + ANALYSIS_LINES / 2;
+    }
+    final var line = Math.max(0, Math.min(focusLine, lineCount - 1));
+    final var startLine = Math.max(0, line - ANALYSIS_LINES / 2);
+    final var endLine = Math.min(lineCount - 1, startLine + ANALYSIS_LINES - 1);
+    return new ProperTextRange(doc.getLineStartOffset(startLine), doc.getLineEndOffset(endLine));
+  }
+}
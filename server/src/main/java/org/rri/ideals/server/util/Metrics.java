@@ -3,11 +3,37 @@ package org.rri.ideals.server.util;
 import com.intellij.openapi.diagnostic.Logger;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 
 public class Metrics {
   private static final Logger LOG = Logger.getInstance(Metrics.class);
 
+  private static final Map<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+
+  /**
+   * Registers a named value sampled on demand, e.g. a queue depth.
+   * A gauge registered under an existing name replaces the previous one.
+   */
+  public static void registerGauge(@NotNull String name, @NotNull Supplier<? extends Number> gauge) {
+    gauges.put(name, gauge);
+  }
+
+  @NotNull
+  public static Map<String, Number> sampleGauges() {
+    final var result = new TreeMap<String, Number>();
+    gauges.forEach((name, gauge) -> result.put(name, gauge.get()));
+    return result;
+  }
+
+  public static void logGauges() {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("gauges: " + sampleGauges());
+    }
+  }
+
   public static void run(@NotNull Supplier<@NotNull String> blockNameSupplier, @NotNull Runnable block) {
     call(blockNameSupplier, (Supplier<Void>) () -> {
       block.run();
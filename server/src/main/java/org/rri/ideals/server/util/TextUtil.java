@@ -13,6 +13,7 @@ import com.intellij.psi.PsiFileFactory;
 import org.eclipse.lsp4j.Range;
 import org.eclipse.lsp4j.TextEdit;
 import org.jetbrains.annotations.NotNull;
+import org.rri.ideals.server.DocumentSnapshot;
 
 import java.util.List;
 import java.util.function.Consumer;
@@ -55,15 +56,67 @@ public class TextUtil {
 
   @NotNull
   public static List<@NotNull TextEdit> textEditFromDocs(@NotNull Document oldDoc, @NotNull Document newDoc) {
-    var changes = diff(oldDoc.getText(), newDoc.getText());
+    return textEditFromSnapshot(DocumentSnapshot.create(null, oldDoc.getText()), newDoc.getText());
+  }
+
+  /**
+   * Computes the edits turning the snapshot text into the new text. Works with immutable texts only,
+   * so can be called on any thread without a read action.
+   */
+  @NotNull
+  public static List<@NotNull TextEdit> textEditFromSnapshot(@NotNull DocumentSnapshot oldSnapshot, @NotNull String newText) {
+    var oldText = oldSnapshot.getText();
+
+    // for large files, only the changed middle is diffed: copying and diffing the whole text is too expensive
+    var trim = LargeFileMode.isLargeFile(oldText.length());
+    var prefix = trim ? commonPrefixLength(oldText, newText) : 0;
+    var suffix = trim ? commonSuffixLength(oldText, newText, prefix) : 0;
+    var oldEnd = oldText.length() - suffix;
+    var newEnd = newText.length() - suffix;
+
+    var changes = diff(oldText.substring(prefix, oldEnd), newText.substring(prefix, newEnd));
     return changes.stream().map(diffFragment -> {
-      var start = MiscUtil.offsetToPosition(oldDoc, diffFragment.getStartOffset1());
-      var end = MiscUtil.offsetToPosition(oldDoc, diffFragment.getEndOffset1());
-      var text = newDoc.getText(new TextRange(diffFragment.getStartOffset2(), diffFragment.getEndOffset2()));
-      return new TextEdit(new Range(start, end), text);
+      var range = oldSnapshot.getRange(prefix + diffFragment.getStartOffset1(), prefix + diffFragment.getEndOffset1());
+      var text = newText.substring(prefix + diffFragment.getStartOffset2(), prefix + diffFragment.getEndOffset2());
+      return new TextEdit(range, text);
     }).collect(Collectors.toList());
   }
 
+  /**
+   * Replaces the document text with the given one changing only the range between their common prefix and suffix,
+   * so that PSI is reparsed incrementally instead of being rebuilt as after {@link Document#setText}.
+   */
+  public static void replaceChangedRange(@NotNull Document doc, @NotNull String newText) {
+    final var oldText = doc.getImmutableCharSequence();
+    final var prefix = commonPrefixLength(oldText, newText);
+    if (prefix == oldText.length() && prefix == newText.length()) {
+      return;
+    }
+    final var suffix = commonSuffixLength(oldText, newText, prefix);
+    doc.replaceString(prefix, oldText.length() - suffix, newText.substring(prefix, newText.length() - suffix));
+  }
+
+  public static int commonPrefixLength(@NotNull CharSequence first, @NotNull CharSequence second) {
+    var max = Math.min(first.length(), second.length());
+    var i = 0;
+    while (i < max && first.charAt(i) == second.charAt(i)) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * @return the length of the common suffix which doesn't overlap the common prefix of the given length
+   */
+  public static int commonSuffixLength(@NotNull CharSequence first, @NotNull CharSequence second, int prefix) {
+    var max = Math.min(first.length(), second.length()) - prefix;
+    var i = 0;
+    while (i < max && first.charAt(first.length() - 1 - i) == second.charAt(second.length() - 1 - i)) {
+      i++;
+    }
+    return i;
+  }
+
   @NotNull
   private static PsiFile getCopyByFileText(@NotNull PsiFile psiFile) {
     var manager = PsiDocumentManager.getInstance(psiFile.getProject());
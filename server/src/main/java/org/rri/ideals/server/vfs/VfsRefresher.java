@@ -0,0 +1,130 @@
+package org.rri.ideals.server.vfs;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.RefreshQueue;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.util.Metrics;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Refreshes the given files in VFS instead of rescanning the whole file system.
+ * <p>
+ * The files requested within {@code ideals.refresh.delay} milliseconds are refreshed in one asynchronous batch.
+ * A file which doesn't exist in VFS yet is discovered by refreshing its nearest existing ancestor.
+ */
+@Service(Service.Level.APP)
+public final class VfsRefresher {
+  private static final Logger LOG = Logger.getInstance(VfsRefresher.class);
+
+  private static final long DELAY_MS = Long.getLong("ideals.refresh.delay", 100);
+
+  private static final AtomicLong BATCHES = new AtomicLong();
+  private static final AtomicLong FILES = new AtomicLong();
+
+  static {
+    Metrics.registerGauge("refresh.batches", BATCHES::get);
+    Metrics.registerGauge("refresh.files", FILES::get);
+  }
+
+  // guarded by this
+  @NotNull
+  private Set<Path> pending = new LinkedHashSet<>();
+
+  // completed when the pending files are refreshed; guarded by this
+  @Nullable
+  private CompletableFuture<Void> pendingBatch;
+
+  @NotNull
+  public static VfsRefresher getInstance() {
+    return ApplicationManager.getApplication().getService(VfsRefresher.class);
+  }
+
+  @NotNull
+  public CompletableFuture<Void> refresh(@NotNull LspPath path) {
+    return refresh(List.of(path));
+  }
+
+  /**
+   * @return a future completed when the files are refreshed (events are fired and the VFS listeners are notified)
+   */
+  @NotNull
+  public synchronized CompletableFuture<Void> refresh(@NotNull Collection<@NotNull LspPath> paths) {
+    for (var path : paths) {
+      // only local files can be refreshed
+      if (path.toLspUri().startsWith("file:")) {
+        pending.add(path.toPath());
+      }
+    }
+
+    if (pendingBatch == null) {
+      final var batch = new CompletableFuture<Void>();
+      pendingBatch = batch;
+      AppExecutorUtil.getAppScheduledExecutorService().schedule(this::flush, DELAY_MS, TimeUnit.MILLISECONDS);
+      return batch.copy();
+    }
+    return pendingBatch.copy();
+  }
+
+  private void flush() {
+    final Set<Path> paths;
+    final CompletableFuture<Void> batch;
+    synchronized (this) {
+      paths = pending;
+      batch = pendingBatch;
+      pending = new LinkedHashSet<>();
+      pendingBatch = null;
+    }
+    assert batch != null;
+
+    try {
+      final var files = new LinkedHashSet<VirtualFile>();
+      for (var path : paths) {
+        final var file = findNearestExisting(path);
+        if (file != null) {
+          files.add(file);
+        }
+      }
+
+      if (files.isEmpty()) {
+        batch.complete(null);
+        return;
+      }
+
+      BATCHES.incrementAndGet();
+      FILES.addAndGet(files.size());
+      LOG.debug("Refreshing files: " + files.size());
+      RefreshQueue.getInstance().refresh(true, false, () -> batch.complete(null), new ArrayList<>(files));
+    } catch (Throwable e) {
+      LOG.warn("Couldn't refresh files", e);
+      batch.completeExceptionally(e);
+    }
+  }
+
+  @Nullable
+  private static VirtualFile findNearestExisting(@NotNull Path path) {
+    final var fileSystem = LocalFileSystem.getInstance();
+    for (var current = path; current != null; current = current.getParent()) {
+      final var file = fileSystem.findFileByNioFile(current);
+      if (file != null) {
+        return file;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,81 @@
+package org.rri.ideals.server;
+
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class DocumentSnapshotTest {
+  @Test
+  public void positionOffsetConversion() {
+    final var snapshot = DocumentSnapshot.create(1, "ab\n\ncde");
+
+    assertEquals(3, snapshot.getLineCount());
+    assertEquals(0, snapshot.positionToOffset(new Position(0, 0)));
+    assertEquals(3, snapshot.positionToOffset(new Position(1, 0)));
+    assertEquals(6, snapshot.positionToOffset(new Position(2, 2)));
+
+    assertEquals(new Position(0, 2), snapshot.offsetToPosition(2));
+    assertEquals(new Position(1, 0), snapshot.offsetToPosition(3));
+    assertEquals(new Position(2, 3), snapshot.offsetToPosition(7));
+  }
+
+  @Test
+  public void positionToOffset_ClampedToLineEnd() {
+    final var snapshot = DocumentSnapshot.create(1, "ab\ncde");
+
+    assertEquals(2, snapshot.positionToOffset(new Position(0, 10)));
+    assertEquals(6, snapshot.positionToOffset(new Position(5, 0)));
+  }
+
+  @Test
+  public void getText_Range() {
+    final var snapshot = DocumentSnapshot.create(1, "ab\ncde");
+
+    assertEquals("b\ncd", snapshot.getText(new Range(new Position(0, 1), new Position(1, 2))));
+  }
+
+  @Test
+  public void withChanges_AppliedInOrder() {
+    final var snapshot = DocumentSnapshot.create(1, "ab\ncde");
+
+    final var changed = snapshot.withChanges(3, List.of(
+        new TextDocumentContentChangeEvent(new Range(new Position(0, 2), new Position(0, 2)), "x\r\ny"),
+        new TextDocumentContentChangeEvent(new Range(new Position(2, 0), new Position(2, 3)), "")
+    ));
+
+    assertEquals("abx\ny\n", changed.getText());
+    assertEquals(3, changed.getVersion());
+    assertEquals(3, changed.getLineCount());
+    assertEquals("ab\ncde", snapshot.getText());
+  }
+
+  @Test
+  public void withChanges_LineStartsShifted() {
+    final var changed = DocumentSnapshot.create(1, "a\nbc\nd\n\ne")
+        .withChanges(2, List.of(
+            new TextDocumentContentChangeEvent(new Range(new Position(1, 1), new Position(2, 1)), "x\ny\nz"),
+            new TextDocumentContentChangeEvent(new Range(new Position(0, 0), new Position(1, 0)), "")
+        ));
+    final var expected = DocumentSnapshot.create(2, changed.getText());
+
+    assertEquals("bx\ny\nz\n\ne", changed.getText());
+    assertEquals(expected.getLineCount(), changed.getLineCount());
+    for (int line = 0; line < expected.getLineCount(); line++) {
+      assertEquals(expected.getLineStartOffset(line), changed.getLineStartOffset(line));
+    }
+  }
+
+  @Test
+  public void withChanges_FullText() {
+    final var changed = DocumentSnapshot.create(1, "ab")
+        .withChanges(2, List.of(new TextDocumentContentChangeEvent("new\ntext")));
+
+    assertEquals("new\ntext", changed.getText());
+    assertEquals(new Position(1, 4), changed.offsetToPosition(changed.getTextLength()));
+  }
+}
@@ -0,0 +1,73 @@
+package org.rri.ideals.server;
+
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class EditJournalTest {
+  private static final Range RANGE = new Range(new Position(1, 2), new Position(1, 5));
+
+  @Test
+  public void mapRange_EditBefore() {
+    final var journal = new EditJournal(1);
+    journal.record(2, DocumentSnapshot.create(1, "ab\ncdefgh"),
+        new TextDocumentContentChangeEvent(new Range(new Position(0, 1), new Position(0, 1)), "x\ny"));
+
+    assertEquals(new Range(new Position(2, 2), new Position(2, 5)), journal.mapRange(RANGE, 1, 2));
+  }
+
+  @Test
+  public void mapRange_EditOnSameLineBefore() {
+    final var journal = new EditJournal(1);
+    journal.record(2, DocumentSnapshot.create(1, "ab\ncdefgh"),
+        new TextDocumentContentChangeEvent(new Range(new Position(1, 0), new Position(1, 1)), "xyz"));
+
+    assertEquals(new Range(new Position(1, 4), new Position(1, 7)), journal.mapRange(RANGE, 1, 2));
+  }
+
+  @Test
+  public void mapRange_InsertionAtBoundsStaysOutside() {
+    final var journal = new EditJournal(1);
+    final var before = DocumentSnapshot.create(1, "ab\ncdefgh");
+    journal.record(2, before, new TextDocumentContentChangeEvent(new Range(new Position(1, 5), new Position(1, 5)), "x"));
+    journal.record(3, before.withChanges(2, List.of()),
+        new TextDocumentContentChangeEvent(new Range(new Position(1, 2), new Position(1, 2)), "y"));
+
+    assertEquals(new Range(new Position(1, 3), new Position(1, 6)), journal.mapRange(RANGE, 1, 3));
+    assertEquals(RANGE, journal.mapRange(RANGE, 1, 2));
+  }
+
+  @Test
+  public void mapRange_EditInsideInvalidates() {
+    final var journal = new EditJournal(1);
+    journal.record(2, DocumentSnapshot.create(1, "ab\ncdefgh"),
+        new TextDocumentContentChangeEvent(new Range(new Position(1, 3), new Position(1, 4)), ""));
+
+    assertNull(journal.mapRange(RANGE, 1, 2));
+  }
+
+  @Test
+  public void mapRange_FullTextChange() {
+    final var journal = new EditJournal(1);
+    journal.record(2, DocumentSnapshot.create(1, "ab\ncdefgh"), new TextDocumentContentChangeEvent("a\nb\ncdefgh"));
+
+    assertEquals(new Range(new Position(2, 2), new Position(2, 5)), journal.mapRange(RANGE, 1, 2));
+  }
+
+  @Test
+  public void mapRange_UncoveredVersions() {
+    final var journal = new EditJournal(3);
+    journal.record(4, DocumentSnapshot.create(3, "ab\ncdefgh"),
+        new TextDocumentContentChangeEvent(new Range(new Position(0, 0), new Position(0, 0)), "x"));
+
+    assertNull(journal.mapRange(RANGE, 2, 4));
+    assertNull(journal.mapRange(RANGE, 3, 5));
+    assertNull(journal.mapRange(RANGE, null, 4));
+  }
+}
@@ -0,0 +1,38 @@
+package org.rri.ideals.server;
+
+import org.junit.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class LspPathIndexTest {
+  @Test
+  public void find_InnermostRoot() {
+    final var index = new LspPathIndex<String>();
+    index.put(LspPath.fromLspUri("file:///work/repo"), "repo");
+    index.put(LspPath.fromLspUri("file:///work/repo/module"), "module");
+
+    assertEquals("module", index.find(LspPath.fromLspUri("file:///work/repo/module/src/Main.java")));
+    assertEquals("module", index.find(LspPath.fromLspUri("file:///work/repo/module")));
+    assertEquals("repo", index.find(LspPath.fromLspUri("file:///work/repo/other/Main.java")));
+  }
+
+  @Test
+  public void find_NoSegmentPrefixMatch() {
+    final var index = new LspPathIndex<String>();
+    index.put(LspPath.fromLspUri("file:///work/repo"), "repo");
+
+    assertNull(index.find(LspPath.fromLspUri("file:///work/repo2/Main.java")));
+    assertNull(index.find(LspPath.fromLspUri("file:///work")));
+  }
+
+  @Test
+  public void find_AfterRemove() {
+    final var index = new LspPathIndex<String>();
+    index.put(LspPath.fromLspUri("file:///work/repo"), "repo");
+    index.put(LspPath.fromLspUri("file:///work/repo/module"), "module");
+    index.remove(LspPath.fromLspUri("file:///work/repo/module/"));
+
+    assertEquals("repo", index.find(LspPath.fromLspUri("file:///work/repo/module/src/Main.java")));
+  }
+}
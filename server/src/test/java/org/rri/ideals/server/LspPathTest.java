@@ -6,6 +6,7 @@ import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertAll;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 public class LspPathTest {
   @Test
@@ -37,4 +38,12 @@ public class LspPathTest {
     assertEquals("file:///e:/Program Files/test.txt", LspPath.fromLspUri("file:///E:/Program Files/test.txt").toLspUri());
     assertEquals("jar:///e:/Program Files/lib/jar!/test.txt", LspPath.fromLspUri("jar:///E:/Program Files/lib/jar!/test.txt").toLspUri());
   }
+
+  @Test
+  public void interning_SameInstanceForEquivalentUris() {
+    final var path = LspPath.fromLspUri("file:///e:/Program%20Files/test.txt");
+
+    assertSame(path, LspPath.fromLspUri("file:///e:/Program%20Files/test.txt"));
+    assertSame(path, LspPath.fromLspUri("file:/E:/Program Files/test.txt"));
+  }
 }
@@ -0,0 +1,88 @@
+package org.rri.ideals.server;
+
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiJavaFile;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rri.ideals.server.util.MiscUtil;
+import org.rri.ideals.server.util.TextUtil;
+
+@RunWith(JUnit4.class)
+public class TextUtilTest extends LspLightBasePlatformTestCase {
+  @Test
+  public void testPrefixAndSuffixDontOverlap() {
+    assertReplacement("aa", "aaa", 2, 0);
+    assertReplacement("aaa", "aa", 2, 0);
+    assertReplacement("aba", "a", 1, 0);
+    assertReplacement("a", "aba", 1, 0);
+  }
+
+  @Test
+  public void testIdenticalText() {
+    assertReplacement("abc", "abc", 3, 0);
+  }
+
+  @Test
+  public void testEmptyText() {
+    assertReplacement("", "abc", 0, 0);
+    assertReplacement("abc", "", 0, 0);
+    assertReplacement("", "", 0, 0);
+  }
+
+  @Test
+  public void testChangeInTheMiddle() {
+    assertReplacement("abXcd", "abYYcd", 2, 2);
+  }
+
+  @Test
+  public void testCrLf() {
+    assertReplacement("a\r\nb", "a\r\nc", 3, 0);
+    assertReplacement("a\r\nb", "a\nb", 1, 2);
+    assertReplacement("a\nb", "a\r\nb", 1, 2);
+  }
+
+  /**
+   * Checks the lengths of the common prefix and suffix and that replacing the range between them in the old text
+   * gives the new text.
+   */
+  private static void assertReplacement(@NotNull String oldText, @NotNull String newText, int prefix, int suffix) {
+    Assert.assertEquals(prefix, TextUtil.commonPrefixLength(oldText, newText));
+    Assert.assertEquals(suffix, TextUtil.commonSuffixLength(oldText, newText, prefix));
+    Assert.assertEquals(newText, oldText.substring(0, prefix)
+        + newText.substring(prefix, newText.length() - suffix)
+        + oldText.substring(oldText.length() - suffix));
+  }
+
+  @Test
+  public void testReplaceChangedRangeKeepsUnchangedPsi() {
+    final var file = (PsiJavaFile) myFixture.configureByText("A.java", """
+        class A {
+          void f() { int x; }
+          void g() { int y; }
+        }
+        """);
+    final var document = MiscUtil.getDocument(file);
+    Assert.assertNotNull(document);
+    final var methods = file.getClasses()[0].getMethods();
+
+    final var newText = """
+        class A {
+          void f() { int x; }
+          void g() { int z; }
+        }
+        """;
+    WriteCommandAction.runWriteCommandAction(getProject(), () -> {
+      TextUtil.replaceChangedRange(document, newText);
+      PsiDocumentManager.getInstance(getProject()).commitDocument(document);
+    });
+
+    Assert.assertEquals(newText, document.getText());
+    Assert.assertTrue(methods[0].isValid());
+    Assert.assertTrue(methods[1].isValid());
+    Assert.assertEquals("void g() { int z; }", file.getClasses()[0].getMethods()[1].getText());
+  }
+}
@@ -0,0 +1,76 @@
+package org.rri.ideals.server.commands;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rri.ideals.server.LspLightBasePlatformTestCase;
+import org.rri.ideals.server.LspPath;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+@RunWith(JUnit4.class)
+public class RequestCoalescerTest extends LspLightBasePlatformTestCase {
+  private static final LspPath PATH = LspPath.fromLspUri("file:///test/Test.java");
+
+  // the computations started by the requests, completed by the tests
+  private final List<CompletableFuture<String>> computations = new ArrayList<>();
+
+  @NotNull
+  private CompletableFuture<String> request(@NotNull Object key) {
+    return getProject().getService(RequestCoalescer.class).coalesce(PATH, key, () -> {
+      final var computation = new CompletableFuture<String>();
+      computations.add(computation);
+      return computation;
+    });
+  }
+
+  @Test
+  public void testIdenticalRequestsShareComputation() {
+    final var first = request("definition:1:2");
+    final var second = request("definition:1:2");
+    final var other = request("definition:3:4");
+    Assert.assertEquals(2, computations.size());
+
+    computations.get(0).complete("result");
+    Assert.assertEquals("result", first.join());
+    Assert.assertEquals("result", second.join());
+    Assert.assertFalse(other.isDone());
+
+    // the completed result is reused
+    Assert.assertEquals("result", request("definition:1:2").join());
+    Assert.assertEquals(2, computations.size());
+  }
+
+  @Test
+  public void testCancelledWaiterDoesNotCancelOthers() {
+    final var first = request("highlight:1:2");
+    final var second = request("highlight:1:2");
+    Assert.assertEquals(1, computations.size());
+
+    first.cancel(true);
+    Assert.assertFalse(computations.get(0).isCancelled());
+
+    computations.get(0).complete("result");
+    Assert.assertEquals("result", second.join());
+  }
+
+  @Test
+  public void testAbandonedComputationIsCancelled() {
+    final var first = request("highlight:5:6");
+    final var second = request("highlight:5:6");
+
+    first.cancel(true);
+    second.cancel(true);
+    Assert.assertTrue(computations.get(0).isCancelled());
+
+    // an identical request doesn't join the cancelled computation
+    final var third = request("highlight:5:6");
+    Assert.assertEquals(2, computations.size());
+    computations.get(1).complete("result");
+    Assert.assertEquals("result", third.join());
+  }
+}
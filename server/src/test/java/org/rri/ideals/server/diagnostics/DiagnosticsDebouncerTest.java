@@ -0,0 +1,55 @@
+package org.rri.ideals.server.diagnostics;
+
+import org.junit.Test;
+import org.rri.ideals.server.LspPath;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class DiagnosticsDebouncerTest {
+  private static final LspPath PATH = LspPath.fromLspUri("file:///test.py");
+
+  @Test
+  public void defaultDelayUntilMeasured() {
+    final var debouncer = new DiagnosticsDebouncer();
+
+    debouncer.onChange(PATH, 0);
+    assertEquals(DiagnosticsService.DELAY, debouncer.getDelay(PATH));
+  }
+
+  @Test
+  public void delayFollowsTypingCadence() {
+    final var debouncer = new DiagnosticsDebouncer();
+
+    debouncer.onChange(PATH, 0);
+    debouncer.onChange(PATH, TimeUnit.MILLISECONDS.toNanos(100));
+    assertEquals(150, debouncer.getDelay(PATH));
+  }
+
+  @Test
+  public void slowAnalysisIncreasesDelay() {
+    final var debouncer = new DiagnosticsDebouncer();
+
+    debouncer.onAnalyzed(PATH, TimeUnit.MILLISECONDS.toNanos(1000));
+    assertEquals(500, debouncer.getDelay(PATH));
+  }
+
+  @Test
+  public void fastAnalysisOfSmallFile() {
+    final var debouncer = new DiagnosticsDebouncer();
+
+    debouncer.onAnalyzed(PATH, TimeUnit.MILLISECONDS.toNanos(10));
+    assertEquals(50, debouncer.getDelay(PATH));
+  }
+
+  @Test
+  public void reanalysisWithoutChangesKeepsCadence() {
+    final var debouncer = new DiagnosticsDebouncer();
+
+    debouncer.onChange(PATH, 0);
+    debouncer.onChange(PATH, TimeUnit.MILLISECONDS.toNanos(100));
+    debouncer.getDelay(PATH);
+    assertEquals(150, debouncer.getDelay(PATH));
+  }
+}
@@ -1,17 +1,26 @@
 package org.rri.ideals.server.diagnostics;
 
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.jetbrains.python.PythonFileType;
+import com.jetbrains.python.inspections.unusedLocal.PyUnusedLocalInspection;
 import org.eclipse.lsp4j.Diagnostic;
 import org.eclipse.lsp4j.DiagnosticSeverity;
+import org.eclipse.lsp4j.DocumentDiagnosticReport;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.rri.ideals.server.LspPath;
 import org.rri.ideals.server.TestUtil;
+import org.rri.ideals.server.util.Metrics;
 import org.rri.ideals.server.util.MiscUtil;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Stream;
 
 @RunWith(JUnit4.class)
@@ -65,6 +74,85 @@ public class DiagnosticsServiceTest extends DiagnosticsTestBase {
     });
   }
 
+  @Test
+  public void testPullUnchangedUntilEdited() {
+    final var file = myFixture.configureByText(PythonFileType.INSTANCE, "1 ! 2");
+    final var path = LspPath.fromVirtualFile(file.getVirtualFile());
+
+    final var first = pull(path, null);
+    Assert.assertTrue(first.isLeft());
+    Assert.assertEquals(2, first.getLeft().getItems().size());
+    final var resultId = first.getLeft().getResultId();
+
+    final var second = pull(path, resultId);
+    Assert.assertTrue(second.isRight());
+    Assert.assertEquals(resultId, second.getRight().getResultId());
+
+    final var document = MiscUtil.getDocument(file);
+    Assert.assertNotNull(document);
+    WriteCommandAction.runWriteCommandAction(getProject(), () -> {
+      document.setText("1 + 2");
+      PsiDocumentManager.getInstance(getProject()).commitDocument(document);
+    });
+
+    final var third = pull(path, resultId);
+    Assert.assertTrue(third.isLeft());
+    Assert.assertNotEquals(resultId, third.getLeft().getResultId());
+    Assert.assertTrue(third.getLeft().getItems().isEmpty());
+  }
+
+  @NotNull
+  private DocumentDiagnosticReport pull(@NotNull LspPath path, @Nullable String previousResultId) {
+    final var diagnosticsService = getProject().getService(DiagnosticsService.class);
+    // the analysis isn't run on EDT by the server either
+    return TestUtil.getNonBlockingEdt(CompletableFuture.supplyAsync(
+        () -> diagnosticsService.pullDiagnostics(path, previousResultId, () -> {}),
+        AppExecutorUtil.getAppExecutorService()), 30000);
+  }
+
+  @Test
+  public void testCachedWhileUnchanged() {
+    final var file = myFixture.configureByText(PythonFileType.INSTANCE, "1 ! 2");
+    final var analyzed = runAndGetDiagnostics(file).getDiagnostics();
+
+    // e.g. saved without changes
+    final var hits = getCacheHits();
+    Assert.assertEquals(analyzed, runAndGetDiagnostics(file).getDiagnostics());
+    Assert.assertEquals(hits + 1, getCacheHits());
+
+    // another file may change the problems of this one
+    myFixture.addFileToProject("other.py", "x = 1");
+    Assert.assertEquals(analyzed, runAndGetDiagnostics(file).getDiagnostics());
+    Assert.assertEquals(hits + 1, getCacheHits());
+  }
+
+  private static long getCacheHits() {
+    return Metrics.sampleGauges().get("diagnostics.cache.hits").longValue();
+  }
+
+  @Test
+  public void testSyntaxErrorsPublishedBeforeInspections() {
+    myFixture.enableInspections(new PyUnusedLocalInspection());
+    final var file = myFixture.configureByText(PythonFileType.INSTANCE, """
+        def f():
+            x = 1
+
+        1 ! 2
+        """);
+
+    final var result = runAndGetDiagnostics(file).getDiagnostics();
+    Assert.assertTrue(hasMessage(result, "End of statement expected"));
+    Assert.assertTrue(hasMessage(result, "Local variable 'x' value is not used"));
+
+    final var early = getClient().getAllDiagnosticsPublished().get(0).getDiagnostics();
+    Assert.assertTrue(hasMessage(early, "End of statement expected"));
+    Assert.assertFalse(hasMessage(early, "Local variable 'x' value is not used"));
+  }
+
+  private static boolean hasMessage(@NotNull List<Diagnostic> diagnostics, @NotNull String message) {
+    return diagnostics.stream().anyMatch(it -> it.getMessage().equals(message));
+  }
+
   @Test
   public void testGetQuickFixes() {
 
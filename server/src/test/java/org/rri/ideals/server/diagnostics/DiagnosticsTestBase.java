@@ -4,6 +4,7 @@ import com.intellij.psi.PsiFile;
 import org.eclipse.lsp4j.ClientCapabilities;
 import org.eclipse.lsp4j.PublishDiagnosticsParams;
 import org.jetbrains.annotations.NotNull;
+import org.junit.After;
 import org.junit.Before;
 import org.rri.ideals.server.LspContext;
 import org.rri.ideals.server.LspLightBasePlatformTestCase;
@@ -11,17 +12,24 @@ import org.rri.ideals.server.LspPath;
 import org.rri.ideals.server.mocks.MockLanguageClient;
 
 public abstract class DiagnosticsTestBase extends LspLightBasePlatformTestCase {
+  private LspContext context;
+
   @Before
   public void setupContext() {
-    LspContext.createContext(getProject(),
+    context = LspContext.createContext(getProject(),
         new MockLanguageClient(),
         new ClientCapabilities()
     );
   }
 
+  @After
+  public void removeContext() {
+    LspContext.removeContext(getProject(), context);
+  }
+
   @NotNull
   protected MockLanguageClient getClient() {
-    return (MockLanguageClient) LspContext.getContext(getProject()).getClient();
+    return (MockLanguageClient) context.getClient();
   }
 
   @NotNull
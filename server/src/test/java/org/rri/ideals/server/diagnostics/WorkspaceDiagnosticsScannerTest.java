@@ -0,0 +1,46 @@
+package org.rri.ideals.server.diagnostics;
+
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.psi.PsiDocumentManager;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rri.ideals.server.LspPath;
+
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class WorkspaceDiagnosticsScannerTest extends DiagnosticsTestBase {
+
+  @Test
+  public void testStorePublishClear() {
+    final var file = myFixture.addFileToProject("closed.py", "1 ! 2");
+    final var path = LspPath.fromVirtualFile(file.getVirtualFile());
+    final var scanner = getProject().getService(WorkspaceDiagnosticsScanner.class);
+
+    getClient().resetDiagnosticsResult();
+    scanner.rescan(List.of(file.getVirtualFile()));
+    final var published = getClient().waitAndGetDiagnosticsPublished();
+
+    Assert.assertEquals(path, LspPath.fromLspUri(published.getUri()));
+    Assert.assertEquals(2, published.getDiagnostics().size());
+    Assert.assertEquals(published.getDiagnostics(), scanner.getStoredDiagnostics(path));
+
+    final var document = PsiDocumentManager.getInstance(getProject()).getDocument(file);
+    Assert.assertNotNull(document);
+    WriteCommandAction.runWriteCommandAction(getProject(), () -> {
+      document.setText("1 + 2");
+      PsiDocumentManager.getInstance(getProject()).commitDocument(document);
+    });
+
+    // the problems published before are cleared and forgotten
+    getClient().resetDiagnosticsResult();
+    scanner.rescan(List.of(file.getVirtualFile()));
+    final var cleared = getClient().waitAndGetDiagnosticsPublished();
+
+    Assert.assertEquals(path, LspPath.fromLspUri(cleared.getUri()));
+    Assert.assertTrue(cleared.getDiagnostics().isEmpty());
+    Assert.assertNull(scanner.getStoredDiagnostics(path));
+  }
+}
@@ -5,8 +5,10 @@ import org.jetbrains.annotations.NotNull;
 import org.junit.Assert;
 import org.junit.Test;
 import org.rri.ideals.server.LspPath;
+import org.rri.ideals.server.VisibleRangesParams;
 import org.rri.ideals.server.util.MiscUtil;
 
+import java.io.IOException;
 import java.nio.file.Files;
 import java.util.List;
 
@@ -77,6 +79,46 @@ public class DiagnosticsTest extends LspServerTestBase {
     Assert.assertEquals(new Range(new Position(3, 15), new Position(3, 16)), diagnostic.getRange());
   }
 
+  @Test
+  public void largeFileVisibleRange() throws IOException {
+    final var filePath = LspPath.fromLocalPath(getProjectPath().resolve("src/Large.java"));
+    final var text = new StringBuilder("class Large {\n");
+    for (int line = 1; line < 12_000; line++) {
+      text.append(line == 9000 ? "  int b = ;" : "  // " + "x".repeat(195)).append('\n');
+    }
+    text.append("}\n");
+    Files.writeString(filePath.toPath(), text);
+    try {
+      sendOpen(filePath);
+      client().waitAndGetDiagnosticsPublished();
+
+      // the client shows the error far from the edit below
+      client().resetDiagnosticsResult();
+      server().visibleRanges(new VisibleRangesParams(filePath.toLspUri(),
+          List.of(new Range(new Position(8980, 0), new Position(9020, 0)))));
+      Assert.assertTrue(hasErrorAtLine(client().waitAndGetDiagnosticsPublished(), 9000));
+
+      client().resetDiagnosticsResult();
+      final var params = new DidChangeTextDocumentParams();
+      params.setTextDocument(MiscUtil.with(new VersionedTextDocumentIdentifier(), item -> {
+        item.setUri(filePath.toLspUri());
+        item.setVersion(2);
+      }));
+      params.setContentChanges(List.of(
+          new TextDocumentContentChangeEvent(new Range(new Position(10, 5), new Position(10, 6)), "y")));
+      server().getTextDocumentService().didChange(params);
+
+      Assert.assertTrue(hasErrorAtLine(client().waitAndGetDiagnosticsPublished(), 9000));
+    } finally {
+      Files.deleteIfExists(filePath.toPath());
+    }
+  }
+
+  private static boolean hasErrorAtLine(@NotNull PublishDiagnosticsParams params, int line) {
+    return params.getDiagnostics().stream()
+        .anyMatch(it -> it.getMessage().equals("Expression expected") && it.getRange().getStart().getLine() == line);
+  }
+
   private void sendOpen(@NotNull LspPath filePath) {
     //noinspection CodeBlock2Expr
     final var didOpenTextDocumentParams = MiscUtil.with(new DidOpenTextDocumentParams(), params -> {
@@ -78,6 +78,7 @@ public abstract class LspServerTestBase extends HeavyPlatformTestCase {
     final var initializeParams = new InitializeParams();
     setupInitializeParams(initializeParams);
     TestUtil.getNonBlockingEdt(server.initialize(initializeParams), 30000);
+    TestUtil.getNonBlockingEdt(server.whenProjectsReady(), 30000);
   }
 
   @Before
@@ -1,12 +1,15 @@
 package org.rri.ideals.server.lsp;
 
 import com.intellij.openapi.project.Project;
+import org.eclipse.lsp4j.DidChangeWorkspaceFoldersParams;
 import org.eclipse.lsp4j.InitializeParams;
 import org.eclipse.lsp4j.InitializeResult;
 import org.eclipse.lsp4j.WorkspaceFolder;
+import org.eclipse.lsp4j.WorkspaceFoldersChangeEvent;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.jupiter.api.Assertions;
+import org.rri.ideals.server.LspPath;
 import org.rri.ideals.server.TestUtil;
 
 import java.nio.file.Path;
@@ -35,6 +38,7 @@ public class ServerInitializationTest extends LspServerTestBase {
 
     initializeResult = TestUtil.getNonBlockingEdt(server().initialize(initializeParams), 30000);
     Assert.assertNotNull(initializeResult.getCapabilities().getTextDocumentSync());
+    TestUtil.getNonBlockingEdt(server().whenProjectsReady(), 30000);
 
     Project project1 = server().getProject();
 
@@ -50,6 +54,7 @@ public class ServerInitializationTest extends LspServerTestBase {
     Assert.assertTrue("project should have been closed and disposed: " + project1, project1.isDisposed());
 
     Assert.assertNotNull(initializeResult.getCapabilities().getTextDocumentSync());
+    TestUtil.getNonBlockingEdt(server().whenProjectsReady(), 30000);
 
     Project project2 = server().getProject();
 
@@ -66,4 +71,36 @@ public class ServerInitializationTest extends LspServerTestBase {
     Assertions.assertThrows(IllegalStateException.class, () -> server().getProject());
     Assert.assertTrue("project should have been closed and disposed: " + project2, project2.isDisposed());
   }
+
+  @Test
+  public void testAddAndRemoveWorkspaceFolder() {
+    final var initializeParams = new InitializeParams();
+    setupInitializeParams(initializeParams);
+
+    TestUtil.getNonBlockingEdt(server().initialize(initializeParams), 30000);
+    TestUtil.getNonBlockingEdt(server().whenProjectsReady(), 30000);
+
+    final Project project1 = server().getProject();
+    final Path project2Root = getTestDataRoot().resolve("lsp/project2");
+    final var project2Folder = new WorkspaceFolder(project2Root.toUri().toString());
+    final var pathInProject2 = LspPath.fromLocalPath(project2Root.resolve("src/Main.java"));
+
+    server().getWorkspaceService().didChangeWorkspaceFolders(new DidChangeWorkspaceFoldersParams(
+        new WorkspaceFoldersChangeEvent(List.of(project2Folder), List.of())));
+    TestUtil.getNonBlockingEdt(server().whenProjectsReady(), 30000);
+
+    final Project project2 = server().getProject(pathInProject2);
+    Assert.assertNotSame(project1, project2);
+    Assert.assertEquals("project has unexpected location",
+        project2Root,
+        Paths.get(Objects.requireNonNull(project2.getBasePath())));
+    Assert.assertSame(project1, server().getProject(LspPath.fromLocalPath(getProjectPath().resolve("src/Main.java"))));
+
+    server().getWorkspaceService().didChangeWorkspaceFolders(new DidChangeWorkspaceFoldersParams(
+        new WorkspaceFoldersChangeEvent(List.of(), List.of(project2Folder))));
+
+    Assert.assertTrue("project should have been closed and disposed: " + project2, project2.isDisposed());
+    Assert.assertFalse("project shouldn't have been closed: " + project1, project1.isDisposed());
+    Assert.assertSame(project1, server().getProject(pathInProject2));
+  }
 }
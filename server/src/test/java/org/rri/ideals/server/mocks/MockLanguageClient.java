@@ -6,8 +6,10 @@ import org.jetbrains.annotations.NotNull;
 import org.rri.ideals.server.MyLanguageClient;
 import org.rri.ideals.server.TestUtil;
 
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class MockLanguageClient implements MyLanguageClient {
@@ -31,6 +33,13 @@ public class MockLanguageClient implements MyLanguageClient {
 
   private final AtomicReference<CompletableFuture<PublishDiagnosticsParams>> diagnosticsFuture = new AtomicReference<>();
 
+  // the diagnostics published during an analysis progress are partial until the progress ends
+  private volatile boolean analysisInProgress = false;
+  private volatile PublishDiagnosticsParams lastPublished;
+
+  // all the diagnostics published since the last reset, the partial ones included
+  private final List<PublishDiagnosticsParams> allPublished = new CopyOnWriteArrayList<>();
+
   @Override
   public CompletableFuture<Void> createProgress(WorkDoneProgressCreateParams params) {
     return CompletableFuture.completedFuture(null);
@@ -38,18 +47,40 @@ public class MockLanguageClient implements MyLanguageClient {
 
   @Override
   public void notifyProgress(ProgressParams params) {
+    final var notification = params.getValue().getLeft();
+    if (notification instanceof WorkDoneProgressBegin) {
+      analysisInProgress = true;
+    } else if (notification instanceof WorkDoneProgressEnd) {
+      analysisInProgress = false;
+      Optional.ofNullable(lastPublished).ifPresent(this::completeDiagnostics);
+    }
   }
 
   @Override
   public void publishDiagnostics(PublishDiagnosticsParams diagnostics) {
-    Optional.of(diagnosticsFuture.get()).ifPresent(it -> it.complete(diagnostics));
+    allPublished.add(diagnostics);
+    lastPublished = diagnostics;
+    if (!analysisInProgress) {
+      completeDiagnostics(diagnostics);
+    }
+  }
+
+  private void completeDiagnostics(@NotNull PublishDiagnosticsParams diagnostics) {
+    Optional.ofNullable(diagnosticsFuture.get()).ifPresent(it -> it.complete(diagnostics));
   }
 
   @SuppressWarnings("unused")
   public void resetDiagnosticsResult() {
+    lastPublished = null;
+    allPublished.clear();
     diagnosticsFuture.set(new CompletableFuture<>());
   }
 
+  @NotNull
+  public List<PublishDiagnosticsParams> getAllDiagnosticsPublished() {
+    return List.copyOf(allPublished);
+  }
+
   @NotNull
   public PublishDiagnosticsParams waitAndGetDiagnosticsPublished() {
     return TestUtil.getNonBlockingEdt(
@@ -0,0 +1,89 @@
+package org.rri.ideals.server.scheduling;
+
+import com.intellij.openapi.util.Disposer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RequestSchedulerTest {
+  // the tasks handed to the pool, run by the tests one by one
+  private final List<Runnable> started = new ArrayList<>();
+  private final List<String> finished = new ArrayList<>();
+
+  // 4 slots: interactive requests may take all of them, normal ones 2, background work 1
+  private final RequestScheduler scheduler = new RequestScheduler(started::add, 4);
+
+  private void schedule(RequestPriority priority, String name) {
+    scheduler.executor(priority).execute(() -> finished.add(name));
+  }
+
+  @Test
+  public void freedSlotGoesToInteractiveWork() {
+    for (int i = 0; i < 4; i++) {
+      schedule(RequestPriority.INTERACTIVE, "interactive" + i);
+    }
+    schedule(RequestPriority.BACKGROUND, "background");
+    schedule(RequestPriority.INTERACTIVE, "interactive4");
+    assertEquals(4, started.size());
+
+    started.get(0).run();
+    assertEquals(5, started.size());
+    started.get(4).run();
+    assertEquals(List.of("interactive0", "interactive4"), finished);
+
+    // the background task gets a slot once no interactive work is queued
+    assertEquals(6, started.size());
+    started.get(5).run();
+    assertEquals("background", finished.get(finished.size() - 1));
+  }
+
+  @Test
+  public void backgroundWorkIsLimited() {
+    schedule(RequestPriority.BACKGROUND, "background0");
+    schedule(RequestPriority.BACKGROUND, "background1");
+    assertEquals(1, started.size());
+
+    schedule(RequestPriority.INTERACTIVE, "interactive");
+    assertEquals(2, started.size());
+
+    started.get(0).run();
+    assertEquals(3, started.size());
+  }
+
+  @Test
+  public void hasWorkAbove() {
+    assertFalse(scheduler.hasWorkAbove(RequestPriority.BACKGROUND));
+
+    schedule(RequestPriority.NORMAL, "normal");
+    assertTrue(scheduler.hasWorkAbove(RequestPriority.BACKGROUND));
+    assertFalse(scheduler.hasWorkAbove(RequestPriority.NORMAL));
+    assertFalse(scheduler.hasWorkAbove(RequestPriority.INTERACTIVE));
+
+    started.get(0).run();
+    assertFalse(scheduler.hasWorkAbove(RequestPriority.BACKGROUND));
+  }
+
+  @Test
+  public void preemptionListeners() {
+    final var preemptions = new AtomicInteger();
+    final var disposable = Disposer.newDisposable();
+    scheduler.addPreemptionListener(RequestPriority.BACKGROUND, preemptions::incrementAndGet, disposable);
+
+    schedule(RequestPriority.BACKGROUND, "background");
+    assertEquals(0, preemptions.get());
+
+    schedule(RequestPriority.NORMAL, "normal");
+    schedule(RequestPriority.INTERACTIVE, "interactive");
+    assertEquals(2, preemptions.get());
+
+    Disposer.dispose(disposable);
+    schedule(RequestPriority.INTERACTIVE, "interactive");
+    assertEquals(2, preemptions.get());
+  }
+}